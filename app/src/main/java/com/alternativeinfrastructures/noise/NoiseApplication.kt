@@ -5,13 +5,17 @@ import android.app.Application
 import com.raizlabs.android.dbflow.config.FlowConfig
 import com.raizlabs.android.dbflow.config.FlowManager
 
+import com.alternativeinfrastructures.noise.storage.MessageCompactor
+import com.alternativeinfrastructures.noise.storage.MessageVector
 import com.alternativeinfrastructures.noise.sync.bluetooth.BluetoothSyncService
 
 class NoiseApplication : Application() {
     override fun onCreate() {
         super.onCreate()
 
-        FlowManager.init(FlowConfig.Builder(this).build())
+        FlowManager.init(FlowConfig.Builder(this).addDatabaseConfig(NoiseDatabase.config()).build())
+        MessageVector.initialize(filesDir)
+        MessageCompactor.start()
 
         BluetoothSyncService.startOrPromptBluetooth(this)
     }
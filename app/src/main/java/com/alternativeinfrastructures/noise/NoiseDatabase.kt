@@ -1,9 +1,24 @@
 package com.alternativeinfrastructures.noise
 
 import com.raizlabs.android.dbflow.annotation.Database
+import com.raizlabs.android.dbflow.config.DatabaseConfig
 
 @Database(name = NoiseDatabase.NAME, version = NoiseDatabase.VERSION, foreignKeyConstraintsEnforced = true)
 object NoiseDatabase {
     const val NAME = "NoiseDatabase"
-    const val VERSION = 2
+    const val VERSION = 10
+
+    // SQLite's own default. Fewer pages keep the log and reads through it short but checkpoint during more commits;
+    // more pages let a large inbound sync commit without stopping to checkpoint. 0 turns automatic checkpoints off.
+    const val DEFAULT_WAL_AUTOCHECKPOINT_PAGES = 1000
+
+    @JvmOverloads
+    fun config(walAutocheckpointPages: Int = DEFAULT_WAL_AUTOCHECKPOINT_PAGES): DatabaseConfig {
+        if (walAutocheckpointPages < 0)
+            throw IllegalArgumentException("Can't checkpoint every $walAutocheckpointPages pages")
+
+        return DatabaseConfig.Builder(NoiseDatabase::class.java)
+                .openHelper { databaseDefinition, listener -> NoiseOpenHelper(databaseDefinition, listener, walAutocheckpointPages) }
+                .build()
+    }
 }
@@ -0,0 +1,37 @@
+package com.alternativeinfrastructures.noise
+
+import android.database.DatabaseUtils
+import android.database.sqlite.SQLiteDatabase
+
+import com.raizlabs.android.dbflow.config.DatabaseDefinition
+import com.raizlabs.android.dbflow.structure.database.DatabaseHelperListener
+import com.raizlabs.android.dbflow.structure.database.FlowSQLiteOpenHelper
+
+// Opens NoiseDatabase with write-ahead logging. Readers, like a sync's long-running match cursor or the message list,
+// then get their own pooled connections and read the last committed state instead of waiting for ingest transactions,
+// and the writer never waits for them either.
+// Committed pages are copied back into the database once the log reaches walAutocheckpointPages, see NoiseDatabase.
+class NoiseOpenHelper(
+        databaseDefinition: DatabaseDefinition,
+        listener: DatabaseHelperListener?,
+        private val walAutocheckpointPages: Int) : FlowSQLiteOpenHelper(databaseDefinition, listener) {
+
+    init {
+        // Before anything opens the database, so that every connection is opened in WAL mode
+        setWriteAheadLoggingEnabled(true)
+    }
+
+    override fun onOpen(db: SQLiteDatabase) {
+        super.onOpen(db)
+
+        // Only the writer's connection commits, so it's the only one that checkpoints. Statements in a transaction
+        // always run on that connection, while a lone read could go to any of them.
+        db.beginTransaction()
+        try {
+            DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint=$walAutocheckpointPages", null)
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+    }
+}
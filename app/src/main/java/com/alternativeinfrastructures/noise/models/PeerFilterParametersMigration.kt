@@ -0,0 +1,32 @@
+package com.alternativeinfrastructures.noise.models
+
+import com.alternativeinfrastructures.noise.NoiseDatabase
+import com.raizlabs.android.dbflow.annotation.Migration
+import com.raizlabs.android.dbflow.sql.migration.BaseMigration
+import com.raizlabs.android.dbflow.structure.database.DatabaseWrapper
+
+// Adds the filter parameters PeerSyncRecord.peerMessageVector was built with. Vectors recorded before this all used
+// the old compile-time parameters, which are the defaults.
+@Migration(version = 5, database = NoiseDatabase::class)
+class PeerFilterParametersMigration : BaseMigration() {
+
+    override fun migrate(database: DatabaseWrapper) {
+        // Upgrading from before PeerSyncRecord existed creates the table with these columns already
+        val existingColumns = HashSet<String>()
+        database.rawQuery("PRAGMA table_info(`PeerSyncRecord`)", null).use { cursor ->
+            while (cursor.moveToNext())
+                existingColumns.add(cursor.getString(cursor.getColumnIndex("name")))
+        }
+
+        for ((column, default) in COLUMN_DEFAULTS)
+            if (column !in existingColumns)
+                database.execSQL("ALTER TABLE `PeerSyncRecord` ADD COLUMN `$column` INTEGER NOT NULL DEFAULT $default")
+    }
+
+    companion object {
+        private val COLUMN_DEFAULTS = arrayOf(
+                "filterVersion" to 1,
+                "filterSize" to (1 shl 20),
+                "filterHashes" to 5)
+    }
+}
@@ -0,0 +1,61 @@
+package com.alternativeinfrastructures.noise.models
+
+import com.alternativeinfrastructures.noise.NoiseDatabase
+import com.alternativeinfrastructures.noise.storage.BloomFilter
+import com.alternativeinfrastructures.noise.storage.FilterParameters
+import com.raizlabs.android.dbflow.annotation.Column
+import com.raizlabs.android.dbflow.annotation.PrimaryKey
+import com.raizlabs.android.dbflow.annotation.Table
+import com.raizlabs.android.dbflow.data.Blob
+import com.raizlabs.android.dbflow.rx2.structure.BaseRXModel
+import com.raizlabs.android.dbflow.sql.language.SQLite
+
+// What this device remembers about the last completed sync with a nearby device, so that meeting it again only costs
+// the messages stored since then.
+@Table(database = NoiseDatabase::class)
+class PeerSyncRecord : BaseRXModel() {
+
+    // Bluetooth MAC address of the peer
+    @PrimaryKey
+    var peerAddress = ""
+
+    @Column
+    var lastSyncedAt: Long = 0
+
+    // Both peers derive the same token at the end of a sync, so matching tokens mean both of them finished it
+    @Column
+    var sessionToken: Long = 0
+
+    // Every message this device stored before this (see UnknownMessage.storedAt) was offered to the peer
+    @Column
+    var sentWatermark: Long = 0
+
+    // The last message vector the peer advertised, encoded with MessageVectorCodec. Empty if it never sent one.
+    @Column
+    var peerMessageVector = Blob()
+
+    // What peerMessageVector was built with, see FilterParameters
+    @Column
+    var filterVersion: Byte = FilterParameters.CURRENT_VERSION
+
+    @Column
+    var filterSize: Int = BloomFilter.SIZE
+
+    @Column
+    var filterHashes: Int = BloomFilter.NUM_HASHES
+
+    var filterParameters: FilterParameters
+        get() = FilterParameters(filterVersion, filterSize, filterHashes)
+        set(parameters) {
+            filterVersion = parameters.version
+            filterSize = parameters.size
+            filterHashes = parameters.numHashes
+        }
+
+    companion object {
+        fun forPeer(peerAddress: String): PeerSyncRecord? {
+            return SQLite.select().from(PeerSyncRecord::class.java)
+                    .where(PeerSyncRecord_Table.peerAddress.eq(peerAddress)).querySingle()
+        }
+    }
+}
@@ -1,119 +1,99 @@
 package com.alternativeinfrastructures.noise.storage
 
-import android.os.Looper
-import android.util.Log
-
-import com.alternativeinfrastructures.noise.NoiseDatabase
-import com.raizlabs.android.dbflow.annotation.ForeignKey
-import com.raizlabs.android.dbflow.annotation.ForeignKeyAction
-import com.raizlabs.android.dbflow.annotation.PrimaryKey
-import com.raizlabs.android.dbflow.annotation.Table
-import com.raizlabs.android.dbflow.rx2.language.RXSQLite
-import com.raizlabs.android.dbflow.rx2.structure.BaseRXModel
-import com.raizlabs.android.dbflow.sql.language.CursorResult
-import com.raizlabs.android.dbflow.sql.language.Method
 import com.raizlabs.android.dbflow.sql.language.SQLite
 import com.raizlabs.android.dbflow.structure.database.DatabaseWrapper
 
-import java.util.ArrayList
 import java.util.BitSet
-import java.util.Vector
+import java.util.concurrent.Callable
 
 import io.reactivex.Flowable
 import io.reactivex.Single
-import util.hash.MurmurHash3
 
 // Actual bloom filter implementation based heavily on this guide:
 // http://blog.michaelschmatz.com/2016/04/11/how-to-write-a-bloom-filter-cpp/
-@Table(database = NoiseDatabase::class)
-class BloomFilter internal constructor() : BaseRXModel() {
-
-    @PrimaryKey
-    @ForeignKey(onDelete = ForeignKeyAction.CASCADE, stubbedRelationship = true)
-    protected var message: UnknownMessage? = null
-
-    @PrimaryKey
-    protected var hash: Int = 0
-
-    companion object {
-        val TAG = "BloomFilter"
-
-        // TODO: Tune these
-        // They need to be large enough to describe billions of messages
-        // but also small enough to transmit in a few seconds over Bluetooth
-        internal val SIZE = 1 shl 20 // in bits
-        internal val USABLE_SIZE = SIZE - 1
-        internal val NUM_HASHES = 5
-
-        val SIZE_IN_BYTES = SIZE / 8
+// Every index a message sets is derived from two 64-bit seeds taken from the SHA-256 digest that validating the message
+// already computes, so storing a message doesn't hash it a second time. Those seeds are stored packed in
+// UnknownMessage.bloomSeeds, so the filter costs 16 bytes in the message's own row instead of a table with NUM_HASHES
+// rows per message. Because the seeds come from the same digest as the proof of work, crafting messages that collide
+// with someone else's indices costs as much as signing them.
+object BloomFilter {
+    val TAG = "BloomFilter"
+
+    // Defaults for vectors that aren't sized for a message count, like the ones peers sent before FilterParameters.
+    // MessageVector sizes this device's own vector with FilterParameters.forMessageCount.
+    internal val SIZE = 1 shl 20 // in bits
+    internal val USABLE_SIZE = SIZE - 1
+    internal val NUM_HASHES = 5
+
+    val SIZE_IN_BYTES = SIZE / 8
+
+    val DEFAULT_PARAMETERS = FilterParameters(FilterParameters.CURRENT_VERSION, SIZE, NUM_HASHES)
+
+    // Two longs, see seedsFromDigest
+    internal val SEEDS_SIZE = 16
+    // Proof of work zeroes the start of the digest and the id is its last 8 bytes, so the seeds come from between them
+    private val SEEDS_OFFSET = 8
+
+    // Stored messages already have their seeds. Anything else is hashed to get them.
+    @Throws(UnknownMessage.NotHashableException::class)
+    internal fun hashMessage(message: UnknownMessage, parameters: FilterParameters = DEFAULT_PARAMETERS): IntArray {
+        val seeds = message.bloomSeeds.blob
+        if (seeds != null && seeds.size == SEEDS_SIZE)
+            return hashSeeds(seeds, parameters)
+        return hashSeeds(seedsFromDigest(message.calculateHash()), parameters)
+    }
 
-        internal fun hashMessage(message: UnknownMessage): List<Int> {
-            val hashList = Vector<Int>(NUM_HASHES)
+    // digest is the SHA-256 hash from UnknownMessage.calculateHash, usually ValidationResult.hash
+    internal fun seedsFromDigest(digest: ByteArray): ByteArray {
+        return digest.copyOfRange(SEEDS_OFFSET, SEEDS_OFFSET + SEEDS_SIZE)
+    }
 
-            // TODO: Is using a non-cryptographic hash like murmurhash okay? An attacker can generate messages that match the hashes to try to block it
-            val primaryHash = MurmurHash3.LongPair()
-            MurmurHash3.murmurhash3_x64_128(message.payload.blob, 0 /*offset*/, UnknownMessage.PAYLOAD_SIZE, 0 /*seed*/, primaryHash)
-            for (hashFunction in 0 until NUM_HASHES)
-                hashList.add(nthHash(primaryHash.val1, primaryHash.val2, hashFunction).toInt())
+    // Allocates a new array. Use a BloomIndexer to derive indices for many messages.
+    internal fun hashSeeds(seeds: ByteArray, parameters: FilterParameters = DEFAULT_PARAMETERS): IntArray {
+        return BloomIndexer(parameters).indicesOf(seeds)
+    }
 
-            return hashList
-        }
+    // usableSize is for vectors other than the global one, like EpochVectors
+    @JvmOverloads
+    fun makeEmptyMessageVector(usableSize: Int = USABLE_SIZE): BitSet {
+        val messageVector = BitSet(usableSize + 1)
+        messageVector.set(usableSize) // Hack to keep the generated byte array the same size
+        return messageVector
+    }
 
-        internal fun addMessage(message: UnknownMessage, databaseWrapper: DatabaseWrapper) {
-            if (Looper.getMainLooper() == Looper.myLooper())
-                Log.e(TAG, "Attempting to save on the UI thread")
-
-            for (hash in hashMessage(message)) {
-                val row = BloomFilter()
-                row.message = message
-                row.hash = hash
-                // blockingGet is okay here because this is always called from within a Transaction
-                row.save(databaseWrapper).blockingGet()
-            }
+    // This is shared with every other caller (including concurrent syncs), so don't modify it
+    val messageVectorAsync: Single<BitSet>
+        get() = Single.fromCallable { MessageVector.get() }
+
+    // Rebuilds the counting message vector from scratch, which is slow for a large store. MessageVector only does
+    // this when it has no other way to get a trustworthy vector, or when it re-indexes with new parameters.
+    internal fun countMessageVector(databaseWrapper: DatabaseWrapper, parameters: FilterParameters): CountingMessageVector {
+        val counts = CountingMessageVector(parameters.usableSize)
+        val indexer = BloomIndexer(parameters)
+        val seedCursor = SQLite.select(UnknownMessage_Table.bloomSeeds).from(UnknownMessage::class.java)
+                .query(databaseWrapper)
+        seedCursor?.use {
+            while (seedCursor.moveToNext())
+                counts.add(seedCursor.getBlob(0), indexer)
         }
+        return counts
+    }
 
-        fun makeEmptyMessageVector(): BitSet {
-            val messageVector = BitSet(SIZE)
-            messageVector.set(USABLE_SIZE) // Hack to keep the generated byte array the same size
-            return messageVector
-        }
+    // Two hash functions landing on the same index only count once
+    @Throws(UnknownMessage.NotHashableException::class)
+    internal fun distinctHashes(message: UnknownMessage, parameters: FilterParameters = DEFAULT_PARAMETERS): List<Int> {
+        return hashMessage(message, parameters).distinct()
+    }
 
-        val messageVectorAsync: Single<BitSet>
-            get() = RXSQLite.rx(SQLite.select(BloomFilter_Table.hash.distinct()).from(BloomFilter::class.java))
-                    .queryResults().map { bloomCursor: CursorResult<BloomFilter> ->
-                        val messageVector = makeEmptyMessageVector()
-                        for (bloomIndex in 0 until bloomCursor.count) {
-                            val filterElement = bloomCursor.getItem(bloomIndex)
-                            if (filterElement != null)
-                                messageVector.set(filterElement.hash)
-                        }
-                        bloomCursor.close()
-                        messageVector
-                    }
-
-        fun getMatchingMessages(messageVector: BitSet): Flowable<UnknownMessage> {
-            val hashes = ArrayList<Int>(messageVector.cardinality())
-            run {
-                var hash = messageVector.nextSetBit(0)
-                while (hash != -1) {
-                    hashes.add(hash)
-                    hash = messageVector.nextSetBit(hash + 1)
-                }
-            }
-
-            // TODO: Implement Noise message priority - order by date and zero bits
-            return RXSQLite.rx(SQLite.select(*UnknownMessage_Table.ALL_COLUMN_PROPERTIES)
-                    .from(UnknownMessage::class.java).leftOuterJoin(BloomFilter::class.java)
-                    .on(UnknownMessage_Table.id.eq(BloomFilter_Table.message_id))
-                    .where(BloomFilter_Table.hash.`in`(hashes))
-                    .groupBy(BloomFilter_Table.message_id)
-                    .having(Method.count().eq(NUM_HASHES)))
-                    .queryStreamResults()
-        }
+    // Streams every message whose hashes are all set in messageVector, reading from the database only as fast as
+    // messages are requested
+    @JvmOverloads
+    fun getMatchingMessages(messageVector: BitSet, parameters: FilterParameters = DEFAULT_PARAMETERS): Flowable<UnknownMessage> {
+        // Only the placeholder bit is set, so nothing can match
+        if (messageVector.nextSetBit(0) >= parameters.usableSize)
+            return Flowable.empty()
 
-        private fun nthHash(hashA: Long, hashB: Long, hashFunction: Int): Long {
-            // Double modulus ensures that the result is positive when any of the hashes are negative
-            return ((hashA + hashFunction * hashB) % USABLE_SIZE + USABLE_SIZE) % USABLE_SIZE
-        }
+        // Matches come in storage order. StreamSync's SendScheduler decides what goes out first.
+        return MessageMatcher.stream(Callable { MessageMatcher(BloomSummary(messageVector, parameters)) })
     }
 }
@@ -0,0 +1,36 @@
+package com.alternativeinfrastructures.noise.storage
+
+// Turns bloom seeds (see BloomFilter.seedsFromDigest) into a message's indices for one set of FilterParameters.
+// The indices are written into the same primitive array on every call, so scanning or counting every stored message
+// doesn't allocate anything per message. That also means an indexer is only for one thread at a time.
+internal class BloomIndexer(val parameters: FilterParameters) {
+
+    private val indices = IntArray(parameters.numHashes)
+
+    // The returned array is overwritten by the next call
+    fun indicesOf(seeds: ByteArray): IntArray {
+        // Double hashing as described by Kirsch and Mitzenmacher: every index comes from the same two seeds
+        val hashA = readLong(seeds, 0)
+        val hashB = readLong(seeds, 8)
+        val usableSize = parameters.usableSize
+        for (hashFunction in 0 until parameters.numHashes)
+            // Double modulus ensures that the result is positive when any of the hashes are negative
+            indices[hashFunction] = (((hashA + hashFunction * hashB) % usableSize + usableSize) % usableSize).toInt()
+        return indices
+    }
+
+    // Two hash functions landing on the same index only count once, so counting skips every repeat of an earlier index
+    fun isRepeat(position: Int): Boolean {
+        for (earlier in 0 until position)
+            if (indices[earlier] == indices[position])
+                return true
+        return false
+    }
+
+    private fun readLong(bytes: ByteArray, offset: Int): Long {
+        var value = 0L
+        for (i in 0..7 /*bytes in a long*/)
+            value = value shl 8 or (bytes[offset + i].toLong() and 0xffL)
+        return value
+    }
+}
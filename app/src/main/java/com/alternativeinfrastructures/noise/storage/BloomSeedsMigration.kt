@@ -0,0 +1,29 @@
+package com.alternativeinfrastructures.noise.storage
+
+import android.util.Log
+
+import com.alternativeinfrastructures.noise.NoiseDatabase
+import com.raizlabs.android.dbflow.annotation.Migration
+import com.raizlabs.android.dbflow.sql.migration.BaseMigration
+import com.raizlabs.android.dbflow.structure.database.DatabaseWrapper
+
+// Moves the bloom filter from its own table (one row per message and hash) into UnknownMessage.bloomSeeds.
+// The seeds are filled in from each stored message by SeedsFromDigestMigration, so the old rows are only dropped.
+@Migration(version = 3, database = NoiseDatabase::class)
+class BloomSeedsMigration : BaseMigration() {
+
+    override fun migrate(database: DatabaseWrapper) {
+        // Typed messages inherit every column, so their tables need it too even though only UnknownMessage's is read
+        for (table in MESSAGE_TABLES)
+            database.execSQL("ALTER TABLE `$table` ADD COLUMN `bloomSeeds` BLOB")
+
+        database.execSQL("DROP TABLE IF EXISTS `BloomFilter`")
+        Log.d(TAG, "Dropped the bloom filter table")
+    }
+
+    companion object {
+        val TAG = "BloomSeedsMigration"
+
+        private val MESSAGE_TABLES = arrayOf("UnknownMessage", "IdentityAnnouncementMessage")
+    }
+}
@@ -0,0 +1,22 @@
+package com.alternativeinfrastructures.noise.storage
+
+import java.util.BitSet
+
+// A message vector with the parameters it was built with.
+// Like the BloomIndexer it tests with, only use it from one thread at a time.
+class BloomSummary(val messageVector: BitSet, val parameters: FilterParameters) : MessageSetSummary {
+
+    private val indexer = BloomIndexer(parameters)
+
+    override val kind: MessageSetSummary.Kind
+        get() = MessageSetSummary.Kind.BLOOM
+
+    override fun mightContain(id: Long, seeds: ByteArray?): Boolean {
+        if (seeds == null || seeds.size != BloomFilter.SEEDS_SIZE)
+            return false
+        for (hash in indexer.indicesOf(seeds))
+            if (!messageVector.get(hash))
+                return false
+        return true
+    }
+}
@@ -0,0 +1,109 @@
+package com.alternativeinfrastructures.noise.storage
+
+import java.io.IOException
+import java.util.BitSet
+
+import okio.BufferedSink
+import okio.BufferedSource
+
+// Message vector with a small counter per slot instead of a single bit, so that messages can be removed again.
+// Counters are four bits wide, two per byte. A counter that reaches its maximum sticks there and is never decremented,
+// which can only leave a bit set that could have been cleared, never clear a bit that is still needed.
+// Not thread-safe; MessageVector and EpochVectors guard theirs with their locks.
+class CountingMessageVector(val size: Int) {
+
+    private val counters = ByteArray((size + 1) / 2)
+
+    operator fun get(index: Int): Int {
+        val packed = counters[index / 2].toInt()
+        return if (index % 2 == 0) packed and 0x0F else (packed shr 4) and 0x0F
+    }
+
+    private fun set(index: Int, count: Int) {
+        val byteIndex = index / 2
+        val packed = counters[byteIndex].toInt()
+        counters[byteIndex] = if (index % 2 == 0)
+            ((packed and 0xF0) or count).toByte()
+        else
+            ((packed and 0x0F) or (count shl 4)).toByte()
+    }
+
+    // Returns true if the slot was empty before
+    fun increment(index: Int): Boolean {
+        val count = get(index)
+        if (count < MAX_COUNT)
+            set(index, count + 1)
+        return count == 0
+    }
+
+    // Returns true if the slot is empty now
+    fun decrement(index: Int): Boolean {
+        val count = get(index)
+        if (count == 0 || count == MAX_COUNT)
+            return false
+        set(index, count - 1)
+        return count == 1
+    }
+
+    // Counts one message's indices by indexer. Seeds that aren't BloomFilter.SEEDS_SIZE can't be indexed and are skipped.
+    internal fun add(seeds: ByteArray?, indexer: BloomIndexer) {
+        if (seeds == null || seeds.size != BloomFilter.SEEDS_SIZE)
+            return
+        val indices = indexer.indicesOf(seeds)
+        for (position in indices.indices)
+            if (!indexer.isRepeat(position))
+                increment(indices[position])
+    }
+
+    // Counts (direction > 0) or uncounts every message's indices by indexer, and returns a copy of vector, the plain
+    // vector of these counts, with the bits of every slot that became used or empty flipped. Returns null if none did,
+    // so the shared vector is only copied if a bit actually flips.
+    internal fun update(vector: BitSet, seeds: List<ByteArray?>, indexer: BloomIndexer, direction: Int): BitSet? {
+        var updatedVector: BitSet? = null
+        for (messageSeeds in seeds) {
+            if (messageSeeds == null || messageSeeds.size != BloomFilter.SEEDS_SIZE)
+                continue
+
+            val indices = indexer.indicesOf(messageSeeds)
+            for (position in indices.indices) {
+                if (indexer.isRepeat(position))
+                    continue
+
+                val index = indices[position]
+                val changed = if (direction > 0) increment(index) else decrement(index)
+                if (!changed)
+                    continue
+
+                if (updatedVector == null)
+                    updatedVector = vector.clone() as BitSet
+                updatedVector.set(index, direction > 0)
+            }
+        }
+        return updatedVector
+    }
+
+    // The plain vector of every slot whose counter is above zero, including the placeholder bit from makeEmptyMessageVector
+    fun toBitSet(): BitSet {
+        val bits = BloomFilter.makeEmptyMessageVector(size)
+        for (index in 0 until size)
+            if (get(index) > 0)
+                bits.set(index)
+        return bits
+    }
+
+    @Throws(IOException::class)
+    fun writeTo(sink: BufferedSink) {
+        sink.write(counters)
+    }
+
+    companion object {
+        val MAX_COUNT = 0x0F
+
+        @Throws(IOException::class)
+        fun readFrom(source: BufferedSource, size: Int): CountingMessageVector {
+            val vector = CountingMessageVector(size)
+            source.readFully(vector.counters)
+            return vector
+        }
+    }
+}
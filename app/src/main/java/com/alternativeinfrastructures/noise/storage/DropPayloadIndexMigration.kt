@@ -0,0 +1,33 @@
+package com.alternativeinfrastructures.noise.storage
+
+import android.util.Log
+
+import com.alternativeinfrastructures.noise.NoiseDatabase
+import com.raizlabs.android.dbflow.annotation.Migration
+import com.raizlabs.android.dbflow.sql.migration.BaseMigration
+import com.raizlabs.android.dbflow.structure.database.DatabaseWrapper
+
+import java.util.ArrayList
+
+// Drops the indexes on UnknownMessage.payload, which were about as large as the messages themselves and were only
+// used to find duplicates. Ids are derived from the message hash, so MessageStore finds those by primary key instead.
+@Migration(version = 9, database = NoiseDatabase::class)
+class DropPayloadIndexMigration : BaseMigration() {
+
+    override fun migrate(database: DatabaseWrapper) {
+        // Typed message tables inherited the index too. Its name depends on how DBFlow generated it, so look it up.
+        val indexNames = ArrayList<String>()
+        database.rawQuery("SELECT `name` FROM `sqlite_master` WHERE `type` = 'index' AND `sql` LIKE '%payload%'", null).use { cursor ->
+            while (cursor.moveToNext())
+                indexNames.add(cursor.getString(0))
+        }
+
+        for (indexName in indexNames)
+            database.execSQL("DROP INDEX IF EXISTS `$indexName`")
+        Log.d(TAG, "Dropped payload indexes $indexNames")
+    }
+
+    companion object {
+        val TAG = "DropPayloadIndexMigration"
+    }
+}
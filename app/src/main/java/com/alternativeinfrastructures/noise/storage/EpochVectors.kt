@@ -0,0 +1,261 @@
+package com.alternativeinfrastructures.noise.storage
+
+import android.util.Log
+
+import com.raizlabs.android.dbflow.sql.language.SQLite
+import com.raizlabs.android.dbflow.structure.database.DatabaseWrapper
+
+import java.util.BitSet
+import java.util.Date
+import java.util.HashMap
+import java.util.HashSet
+import java.util.SortedMap
+import java.util.TreeMap
+import java.util.concurrent.Callable
+import java.util.concurrent.TimeUnit
+
+import io.reactivex.Flowable
+
+// Message vectors partitioned by UnknownMessage.date, one per EPOCH_LENGTH_MS.
+// The global message vector holds every message a device has ever stored, so its false positive rate only grows. Each
+// epoch's vector only holds the messages dated in it, and only the last RETAINED_EPOCHS are kept at all, so the size
+// and false positive rate of what is exchanged stay bounded no matter how long a device has been in the mesh.
+// Each epoch's vector is sized for how many messages it holds (see FilterParameters.forMessageCount), so a quiet day
+// costs a few kilobytes and a relay's busy day still stays at the target false positive rate.
+// Each epoch counts its messages' indices like MessageVector does, so deleting a message only clears the bits nothing
+// else in its epoch uses. An expired epoch is dropped whole instead of clearing its messages one at a time.
+// Like MessageVector, the vectors handed out are copy-on-write and must not be modified.
+object EpochVectors {
+    val TAG = "EpochVectors"
+
+    val EPOCH_LENGTH_MS = TimeUnit.DAYS.toMillis(1)
+    // Enough that a message stays in a retained epoch until it expires: it can be dated up to MAX_CLOCK_SKEW_MS ahead of
+    // the newest one (see retainedEpochs) and live for MAX_LIFETIME_MS, and neither has to start on an epoch boundary
+    val RETAINED_EPOCHS = ((UnknownMessage.MAX_LIFETIME_MS + UnknownMessage.MAX_CLOCK_SKEW_MS + EPOCH_LENGTH_MS - 1) /
+            EPOCH_LENGTH_MS + 1).toInt()
+
+    // What an epoch without any messages uses
+    internal val MIN_PARAMETERS = FilterParameters.forMessageCount(0)
+
+    class EpochVector(val parameters: FilterParameters, val vector: BitSet, val messageCount: Long)
+
+    private val lock = Any()
+    private val emptyVector = EpochVector(MIN_PARAMETERS, BloomFilter.makeEmptyMessageVector(MIN_PARAMETERS.usableSize), 0)
+
+    // Keyed by epoch, see epochOf. Unset until the vectors are first needed and only replaced while holding the lock.
+    private var vectors: TreeMap<Long, EpochVector>? = null
+    // The counts behind each loaded vector (see CountingMessageVector), so that deleting a message clears the bits
+    // nothing else in its epoch uses instead of rebuilding the epoch. Epochs without any are empty.
+    private val epochCounts = HashMap<Long, CountingMessageVector>()
+    // Epochs that outgrew or shrank out of their parameters. Indices change with the parameters, so these are rebuilt.
+    private val staleEpochs = HashSet<Long>()
+
+    fun epochOf(time: Long): Long {
+        // Rounds down for dates before 1970 too
+        return if (time >= 0) time / EPOCH_LENGTH_MS else (time + 1) / EPOCH_LENGTH_MS - 1
+    }
+
+    fun datesIn(epoch: Long): LongRange {
+        return epoch * EPOCH_LENGTH_MS until (epoch + 1) * EPOCH_LENGTH_MS
+    }
+
+    // The newest epoch is the one validate() still accepts dates in, which can be ahead of this device's clock
+    fun retainedEpochs(now: Long = System.currentTimeMillis()): LongRange {
+        val newestEpoch = epochOf(now + UnknownMessage.MAX_CLOCK_SKEW_MS)
+        return newestEpoch - RETAINED_EPOCHS + 1..newestEpoch
+    }
+
+    // Every retained epoch's vector, oldest first, including empty ones
+    @JvmOverloads
+    fun get(now: Long = System.currentTimeMillis()): SortedMap<Long, EpochVector> {
+        val retained = retainedEpochs(now)
+        val (loaded, rebuilding) = synchronized(lock) {
+            Pair(vectors != null, staleEpochs.filter { epoch -> epoch in retained })
+        }
+        if (!loaded || !rebuilding.isEmpty())
+            count(retained, if (loaded) rebuilding else null)
+
+        synchronized(lock) {
+            val epochVectors = vectors ?: return emptySnapshot(retained)
+            val expired = epochVectors.headMap(retained.first)
+            for (epoch in expired.keys)
+                epochCounts.remove(epoch)
+            expired.clear()
+
+            val snapshot = TreeMap<Long, EpochVector>()
+            for (epoch in retained)
+                snapshot[epoch] = epochVectors[epoch] ?: emptyVector
+            return snapshot
+        }
+    }
+
+    // Streams every message dated in epoch whose hashes by parameters are all set in messageVector
+    fun getMatchingMessages(epoch: Long, messageVector: BitSet, parameters: FilterParameters): Flowable<UnknownMessage> {
+        if (messageVector.nextSetBit(0) >= parameters.usableSize)
+            return Flowable.empty()
+
+        return MessageMatcher.stream(Callable { MessageMatcher(BloomSummary(messageVector, parameters), datesIn(epoch)) })
+    }
+
+    // Streams every message dated in epoch that summary doesn't contain
+    fun getMessagesMissingFrom(epoch: Long, summary: MessageSetSummary): Flowable<UnknownMessage> {
+        return MessageMatcher.stream(Callable { MessageMatcher(summary, datesIn(epoch), missing = true) })
+    }
+
+    // Must be called after the messages' transaction has committed
+    internal fun messagesAdded(messages: List<UnknownMessage>) {
+        update(messages, +1)
+    }
+
+    // Must be called after the messages' transaction has committed. Takes O(numHashes) per message.
+    internal fun messagesDeleted(messages: List<UnknownMessage>) {
+        update(messages, -1)
+    }
+
+    // Forgets everything loaded so far, like after the database is replaced
+    internal fun reset() {
+        synchronized(lock) {
+            vectors = null
+            epochCounts.clear()
+            staleEpochs.clear()
+        }
+    }
+
+    private fun update(messages: List<UnknownMessage>, direction: Int) {
+        if (messages.isEmpty())
+            return
+
+        synchronized(lock) {
+            // If nothing is loaded yet, the next load will read these changes from the database
+            val epochVectors = vectors ?: return
+            val retained = retainedEpochs()
+            for ((epoch, epochMessages) in messages.groupBy { message -> epochOf(message.date.time) }) {
+                if (epoch !in retained || epoch in staleEpochs)
+                    continue
+
+                val epochVector = epochVectors[epoch] ?: emptyVector
+                val messageCount = Math.max(0L, epochVector.messageCount + direction * epochMessages.size)
+                val counts = epochCounts[epoch] ?: CountingMessageVector(epochVector.parameters.usableSize)
+                // Deleting from an epoch that was never counted would clear bits its other messages need
+                if (!epochVector.parameters.suits(messageCount) || (direction < 0 && !epochCounts.containsKey(epoch))) {
+                    staleEpochs.add(epoch)
+                    continue
+                }
+
+                val updatedVector = counts.update(epochVector.vector,
+                        epochMessages.map { message -> message.bloomSeeds.blob }, BloomIndexer(epochVector.parameters), direction)
+                epochCounts[epoch] = counts
+                epochVectors[epoch] = EpochVector(epochVector.parameters, updatedVector ?: epochVector.vector, messageCount)
+            }
+        }
+    }
+
+    // Counts every retained epoch if rebuilding is null, and otherwise only the epochs in it.
+    // This runs as a write on MessageWriter, like MessageVector's re-index, so that nothing commits while it reads.
+    // messagesAdded and messagesDeleted are called in commit order, so the writes committed before this are in what it
+    // reads, and the ones committed after it update what it counted. Counting on any other thread could miss a delete
+    // that is then uncounted from an epoch it was never counted in.
+    private fun count(retained: LongRange, rebuilding: List<Long>?) {
+        val started = System.nanoTime()
+        val counted = HashMap<Long, Pair<EpochVector, CountingMessageVector>>()
+        MessageWriter.submit(MessageWriter.Write({ databaseWrapper: DatabaseWrapper ->
+            counted.clear() // In case the transaction is retried
+            if (rebuilding == null)
+                counted.putAll(countRetained(retained, databaseWrapper))
+            else
+                for (epoch in rebuilding)
+                    counted[epoch] = countEpoch(epoch, databaseWrapper)
+        }, {
+            synchronized(lock) {
+                if (rebuilding == null) {
+                    // Unless something else loaded them meanwhile, in which case those are just as current
+                    if (vectors == null) {
+                        val epochVectors = TreeMap<Long, EpochVector>()
+                        epochCounts.clear()
+                        for ((epoch, epochCounted) in counted) {
+                            epochVectors[epoch] = epochCounted.first
+                            epochCounts[epoch] = epochCounted.second
+                        }
+                        staleEpochs.clear()
+                        vectors = epochVectors
+                    }
+                } else {
+                    val epochVectors = vectors
+                    if (epochVectors != null) {
+                        for ((epoch, epochCounted) in counted) {
+                            epochVectors[epoch] = epochCounted.first
+                            epochCounts[epoch] = epochCounted.second
+                            staleEpochs.remove(epoch)
+                        }
+                    }
+                }
+            }
+        })).blockingGet()
+        Log.d(TAG, "Counted " + counted.size + " epoch vectors in " + (System.nanoTime() - started) / 1000000 + " ms")
+    }
+
+    private fun countRetained(
+            retained: LongRange, databaseWrapper: DatabaseWrapper): Map<Long, Pair<EpochVector, CountingMessageVector>> {
+        val firstDate = Date(datesIn(retained.first).first)
+
+        // Every epoch's parameters depend on how many messages it has, so count them before counting any indices
+        val messageCounts = HashMap<Long, Long>()
+        val dateCursor = SQLite.select(UnknownMessage_Table.date).from(UnknownMessage::class.java)
+                .where(UnknownMessage_Table.date.greaterThanOrEq(firstDate))
+                .query(databaseWrapper)
+        dateCursor?.use {
+            while (dateCursor.moveToNext()) {
+                val epoch = epochOf(dateCursor.getLong(0))
+                if (epoch in retained)
+                    messageCounts[epoch] = (messageCounts[epoch] ?: 0L) + 1
+            }
+        }
+
+        val builders = HashMap<Long, Pair<CountingMessageVector, BloomIndexer>>()
+        for ((epoch, messageCount) in messageCounts) {
+            val parameters = FilterParameters.forMessageCount(messageCount)
+            builders[epoch] = Pair(CountingMessageVector(parameters.usableSize), BloomIndexer(parameters))
+        }
+        val seedCursor = SQLite.select(UnknownMessage_Table.date, UnknownMessage_Table.bloomSeeds)
+                .from(UnknownMessage::class.java)
+                .where(UnknownMessage_Table.date.greaterThanOrEq(firstDate))
+                .query(databaseWrapper)
+        seedCursor?.use {
+            while (seedCursor.moveToNext()) {
+                val (counts, indexer) = builders[epochOf(seedCursor.getLong(0))] ?: continue
+                counts.add(seedCursor.getBlob(1), indexer)
+            }
+        }
+
+        val counted = HashMap<Long, Pair<EpochVector, CountingMessageVector>>()
+        for ((epoch, builder) in builders) {
+            val (counts, indexer) = builder
+            counted[epoch] = Pair(EpochVector(indexer.parameters, counts.toBitSet(), messageCounts[epoch]!!), counts)
+        }
+        return counted
+    }
+
+    private fun countEpoch(epoch: Long, databaseWrapper: DatabaseWrapper): Pair<EpochVector, CountingMessageVector> {
+        val dates = datesIn(epoch)
+        val inEpoch = UnknownMessage_Table.date.between(Date(dates.first)).and(Date(dates.last))
+        val messageCount = SQLite.selectCountOf().from(UnknownMessage::class.java).where(inEpoch).longValue(databaseWrapper)
+        val parameters = FilterParameters.forMessageCount(messageCount)
+        val counts = CountingMessageVector(parameters.usableSize)
+        val indexer = BloomIndexer(parameters)
+        val seedCursor = SQLite.select(UnknownMessage_Table.bloomSeeds).from(UnknownMessage::class.java)
+                .where(inEpoch)
+                .query(databaseWrapper)
+        seedCursor?.use {
+            while (seedCursor.moveToNext())
+                counts.add(seedCursor.getBlob(0), indexer)
+        }
+        return Pair(EpochVector(parameters, counts.toBitSet(), messageCount), counts)
+    }
+
+    private fun emptySnapshot(retained: LongRange): SortedMap<Long, EpochVector> {
+        val snapshot = TreeMap<Long, EpochVector>()
+        for (epoch in retained)
+            snapshot[epoch] = emptyVector
+        return snapshot
+    }
+}
@@ -0,0 +1,45 @@
+package com.alternativeinfrastructures.noise.storage
+
+import android.util.Log
+
+import com.alternativeinfrastructures.noise.NoiseDatabase
+import com.raizlabs.android.dbflow.annotation.Migration
+import com.raizlabs.android.dbflow.sql.migration.BaseMigration
+import com.raizlabs.android.dbflow.structure.database.DatabaseWrapper
+
+import java.util.Date
+
+// Adds UnknownMessage.expiresAt and works it out for every stored message. Messages that already expired are left for
+// MessageCompactor to delete.
+@Migration(version = 7, database = NoiseDatabase::class)
+class ExpiresAtMigration : BaseMigration() {
+
+    override fun migrate(database: DatabaseWrapper) {
+        for (table in MESSAGE_TABLES)
+            database.execSQL("ALTER TABLE `$table` ADD COLUMN `expiresAt` INTEGER NOT NULL DEFAULT 0")
+
+        val update = database.compileStatement("UPDATE `UnknownMessage` SET `expiresAt` = ? WHERE `id` = ?")
+        var migrated = 0
+        try {
+            database.rawQuery("SELECT `id`, `zeroBits`, `date` FROM `UnknownMessage`", null).use { cursor ->
+                while (cursor.moveToNext()) {
+                    update.bindLong(1, UnknownMessage.expiryOf(cursor.getInt(1).toByte(), Date(cursor.getLong(2))))
+                    update.bindLong(2, cursor.getLong(0))
+                    update.executeUpdateDelete()
+                    ++migrated
+                }
+            }
+        } finally {
+            update.close()
+        }
+
+        database.execSQL("CREATE INDEX IF NOT EXISTS `index_UnknownMessage_expiresAt` ON `UnknownMessage`(`expiresAt`)")
+        Log.d(TAG, "Set the expiry of $migrated messages")
+    }
+
+    companion object {
+        val TAG = "ExpiresAtMigration"
+
+        private val MESSAGE_TABLES = arrayOf("UnknownMessage", "IdentityAnnouncementMessage")
+    }
+}
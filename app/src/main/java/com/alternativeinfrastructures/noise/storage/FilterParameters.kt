@@ -0,0 +1,81 @@
+package com.alternativeinfrastructures.noise.storage
+
+import java.io.IOException
+
+import okio.BufferedSink
+import okio.BufferedSource
+
+// How a message vector is built: which scheme derives its indices from UnknownMessage.bloomSeeds, how many bits it has
+// (including the placeholder bit from makeEmptyMessageVector) and how many indices each message sets.
+// Peers announce theirs in the handshake, so each device can size its vector for what it stores: a phone with a few
+// hundred messages sends a few kilobytes at most, and a relay with millions of them keeps a useful false positive rate.
+data class FilterParameters(val version: Byte, val size: Int, val numHashes: Int) {
+
+    val usableSize: Int
+        get() = size - 1
+
+    val sizeInBytes: Int
+        get() = size / 8
+
+    // Chance that a message that isn't in a vector with messageCount messages matches it anyway
+    fun falsePositiveRate(messageCount: Long): Double {
+        return Math.pow(1 - Math.exp(-numHashes.toDouble() * messageCount / usableSize), numHashes.toDouble())
+    }
+
+    // Sizes only change by factors of two, so shrink only once the vector is far larger than it needs to be. Otherwise
+    // a count near a boundary would keep re-indexing back and forth.
+    fun suits(messageCount: Long): Boolean {
+        val ideal = forMessageCount(messageCount)
+        return ideal.version == version && ideal.numHashes == numHashes &&
+                ideal.size <= size && ideal.size * SHRINK_FACTOR > size
+    }
+
+    @Throws(IOException::class)
+    fun writeTo(sink: BufferedSink) {
+        sink.writeByte(version.toInt())
+        sink.writeInt(size)
+        sink.writeByte(numHashes)
+    }
+
+    companion object {
+        // Double hashing of two seeds from a MurmurHash3 of the payload. Stored seeds were replaced by
+        // SeedsFromDigestMigration, so vectors built this way can't be matched anymore.
+        val MURMUR_DOUBLE_HASHING: Byte = 1
+        // Double hashing of two seeds from the message's SHA-256 digest, see BloomFilter.seedsFromDigest
+        val SHA256_DOUBLE_HASHING: Byte = 2
+        val CURRENT_VERSION = SHA256_DOUBLE_HASHING
+
+        // Powers of two, so that vectors always split into MessageVectorShards.SHARD_COUNT whole shards
+        val MIN_SIZE = 1 shl 16
+        val MAX_SIZE = 1 shl 24
+        val MAX_HASHES = 16
+
+        // Five hashes is optimal for this, which is what every device used before the size was tunable
+        val TARGET_FALSE_POSITIVE_RATE = 0.03
+
+        private val SHRINK_FACTOR = 4
+
+        // The smallest vector that keeps messageCount messages at or under targetFalsePositiveRate, up to MAX_SIZE
+        @JvmOverloads
+        fun forMessageCount(messageCount: Long, targetFalsePositiveRate: Double = TARGET_FALSE_POSITIVE_RATE): FilterParameters {
+            // The optimal number of hashes only depends on the rate, so it doesn't change as messages come and go
+            val numHashes = Math.round(-Math.log(targetFalsePositiveRate) / Math.log(2.0)).toInt().coerceIn(1, MAX_HASHES)
+
+            var parameters = FilterParameters(CURRENT_VERSION, MIN_SIZE, numHashes)
+            while (parameters.size < MAX_SIZE && parameters.falsePositiveRate(messageCount) > targetFalsePositiveRate)
+                parameters = FilterParameters(CURRENT_VERSION, parameters.size shl 1, numHashes)
+            return parameters
+        }
+
+        @Throws(IOException::class)
+        fun readFrom(source: BufferedSource): FilterParameters {
+            val parameters = FilterParameters(source.readByte(), source.readInt(), source.readByte().toInt())
+            if (parameters.version != CURRENT_VERSION)
+                throw IOException("Unsupported filter version " + parameters.version)
+            if (parameters.size < MIN_SIZE || parameters.size > MAX_SIZE || Integer.bitCount(parameters.size) != 1 ||
+                    parameters.numHashes < 1 || parameters.numHashes > MAX_HASHES)
+                throw IOException("Invalid filter parameters $parameters")
+            return parameters
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.alternativeinfrastructures.noise.storage
+
+import com.alternativeinfrastructures.noise.NoiseDatabase
+import com.raizlabs.android.dbflow.annotation.Migration
+import com.raizlabs.android.dbflow.sql.migration.BaseMigration
+import com.raizlabs.android.dbflow.structure.database.DatabaseWrapper
+
+// Adds UnknownMessage.forwardedAt. Messages stored before this count as never forwarded.
+@Migration(version = 8, database = NoiseDatabase::class)
+class ForwardedAtMigration : BaseMigration() {
+
+    override fun migrate(database: DatabaseWrapper) {
+        for (table in MESSAGE_TABLES)
+            database.execSQL("ALTER TABLE `$table` ADD COLUMN `forwardedAt` INTEGER NOT NULL DEFAULT 0")
+    }
+
+    companion object {
+        private val MESSAGE_TABLES = arrayOf("UnknownMessage", "IdentityAnnouncementMessage")
+    }
+}
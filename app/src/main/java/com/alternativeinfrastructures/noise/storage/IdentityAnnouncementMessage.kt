@@ -3,9 +3,12 @@ package com.alternativeinfrastructures.noise.storage
 import com.alternativeinfrastructures.noise.NoiseDatabase
 import com.alternativeinfrastructures.noise.models.RemoteIdentity
 
+import com.raizlabs.android.dbflow.annotation.ConflictAction
 import com.raizlabs.android.dbflow.annotation.ForeignKey
 import com.raizlabs.android.dbflow.annotation.Index
 import com.raizlabs.android.dbflow.annotation.Table
+import com.raizlabs.android.dbflow.config.FlowManager
+import com.raizlabs.android.dbflow.structure.database.DatabaseWrapper
 
 import org.whispersystems.libsignal.IdentityKey
 import org.whispersystems.libsignal.InvalidKeyException
@@ -20,7 +23,7 @@ import okio.Okio
 import okio.Utf8
 import java.util.*
 
-@Table(database = NoiseDatabase::class)
+@Table(database = NoiseDatabase::class, insertConflict = ConflictAction.IGNORE)
 class IdentityAnnouncementMessage : UnknownMessage {
 
     @ForeignKey(stubbedRelationship = true)
@@ -43,9 +46,14 @@ class IdentityAnnouncementMessage : UnknownMessage {
         val identityKeyBytes = payloadSource.readByteArray(IDENTITY_KEY_SIZE.toLong())
 
         val identityKey = IdentityKey(identityKeyBytes, 0 /*offset*/)
-        val identity = RemoteIdentity(username, deviceId, identityKey)
-        // TODO: Add a mechanism to wait for this to finish saving?
-        identity.save().subscribe()
+        // Saved along with this message, see saveReferences
+        identity = RemoteIdentity(username, deviceId, identityKey)
+    }
+
+    // The identity has to be stored before this row can refer to it
+    override fun saveReferences(databaseWrapper: DatabaseWrapper) {
+        val identity = identity ?: return
+        FlowManager.getModelAdapter(RemoteIdentity::class.java).save(identity, databaseWrapper)
     }
 
     override fun save(): Single<Boolean> {
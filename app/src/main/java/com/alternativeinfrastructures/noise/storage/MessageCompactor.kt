@@ -0,0 +1,68 @@
+package com.alternativeinfrastructures.noise.storage
+
+import android.util.Log
+
+import com.raizlabs.android.dbflow.structure.database.DatabaseWrapper
+
+import java.util.ArrayList
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+// Deletes messages once they expire (see UnknownMessage.expiryOf), so what is stored and synced tracks the messages
+// that are still live instead of everything ever received.
+// Messages are deleted in batches of BATCH_SIZE, each a single write to MessageWriter, so saving received messages is
+// never held up for long. Typed rows go with their messages, and the vectors are updated the same way as for deleteAsync.
+object MessageCompactor {
+    val TAG = "MessageCompactor"
+
+    internal val BATCH_SIZE = 256
+    private val INITIAL_DELAY_MS = TimeUnit.MINUTES.toMillis(1)
+    private val INTERVAL_MS = TimeUnit.HOURS.toMillis(1)
+
+    private val executor = Executors.newSingleThreadScheduledExecutor()
+    private var started = false
+
+    // Called once the app starts
+    fun start() {
+        synchronized(this) {
+            if (started)
+                return
+            started = true
+        }
+        executor.scheduleWithFixedDelay(Runnable { compact() }, INITIAL_DELAY_MS, INTERVAL_MS, TimeUnit.MILLISECONDS)
+    }
+
+    // Deletes every message that expired by now, a batch at a time. Returns how many were deleted.
+    @JvmOverloads
+    fun compact(now: Long = System.currentTimeMillis()): Int {
+        val started = System.nanoTime()
+        var deleted = 0
+        try {
+            while (true) {
+                val batchDeleted = deleteBatch(now)
+                deleted += batchDeleted
+                if (batchDeleted < BATCH_SIZE)
+                    break
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to delete expired messages", e)
+        }
+
+        if (deleted > 0)
+            Log.d(TAG, "Deleted $deleted expired messages in " + (System.nanoTime() - started) / 1000000 + " ms")
+        return deleted
+    }
+
+    private fun deleteBatch(now: Long): Int {
+        val expiredMessages = ArrayList<UnknownMessage>()
+        return MessageWriter.submit(MessageWriter.Write({ databaseWrapper: DatabaseWrapper ->
+            expiredMessages.clear() // In case the transaction is retried
+            expiredMessages.addAll(MessageRows.queryList(
+                    MessageRows.select("WHERE `expiresAt` <= $now LIMIT $BATCH_SIZE"), databaseWrapper))
+            MessageStore.deleteMessages(expiredMessages, databaseWrapper)
+        }, {
+            MessageStore.messagesDeleted(expiredMessages)
+            expiredMessages.size
+        })).blockingGet()
+    }
+}
@@ -0,0 +1,89 @@
+package com.alternativeinfrastructures.noise.storage
+
+import android.database.Cursor
+
+import java.util.ArrayDeque
+import java.util.ArrayList
+import java.util.concurrent.Callable
+
+import io.reactivex.Flowable
+import io.reactivex.functions.BiConsumer
+import io.reactivex.functions.Consumer
+
+// Finds every stored message that a MessageSetSummary, like a message vector, contains.
+// Instead of handing the set bits to SQL, this walks every message's id and packed bloom seeds with a single
+// constant-size query and tests them against the summary in memory. Matching ids are then loaded in
+// fixed-size chunks, so the SQL stays the same size no matter how many bits are set and the work is linear in the store.
+// Used as the state of a Flowable.generate, which only calls next() as fast as messages are requested.
+// Expired messages are never matched, since no peer would accept them. If dates is set, only messages dated in it are
+// scanned. With missing set, this finds the messages that the summary doesn't contain instead.
+internal class MessageMatcher(
+        private val summary: MessageSetSummary,
+        private val dates: LongRange? = null,
+        private val missing: Boolean = false) {
+
+    private var cursor: Cursor? = null
+    private var exhausted = false
+    private val pending = ArrayDeque<UnknownMessage>(CHUNK_SIZE)
+
+    // Returns null once there are no more matches
+    fun next(): UnknownMessage? {
+        while (pending.isEmpty() && !exhausted)
+            loadChunk()
+        return pending.poll()
+    }
+
+    fun close() {
+        cursor?.close()
+        cursor = null
+        exhausted = true
+    }
+
+    private fun loadChunk() {
+        val rows = cursor ?: openCursor()
+        if (rows == null) {
+            close()
+            return
+        }
+
+        val matchingIds = ArrayList<Long>(CHUNK_SIZE)
+        while (matchingIds.size < CHUNK_SIZE) {
+            if (!rows.moveToNext()) {
+                close()
+                break
+            }
+
+            if (summary.mightContain(rows.getLong(0), rows.getBlob(1)) != missing)
+                matchingIds.add(rows.getLong(0))
+        }
+
+        if (!matchingIds.isEmpty())
+            pending.addAll(MessageRows.queryList(MessageRows.select(MessageRows.whereIdIn(matchingIds))))
+    }
+
+    private fun openCursor(): Cursor? {
+        var where = "WHERE `expiresAt` > " + System.currentTimeMillis()
+        if (dates != null)
+            where += " AND `date` BETWEEN " + dates.first + " AND " + dates.last
+        cursor = MessageRows.database().rawQuery("SELECT `id`, `bloomSeeds` FROM `UnknownMessage` $where", null)
+        return cursor
+    }
+
+    companion object {
+        // Well under SQLite's default limit of 999 bound variables
+        private val CHUNK_SIZE = 256
+
+        fun stream(matcherSupplier: Callable<MessageMatcher>): Flowable<UnknownMessage> {
+            return Flowable.generate<UnknownMessage, MessageMatcher>(
+                    matcherSupplier,
+                    BiConsumer { matcher, emitter ->
+                        val message = matcher.next()
+                        if (message != null)
+                            emitter.onNext(message)
+                        else
+                            emitter.onComplete()
+                    },
+                    Consumer { matcher -> matcher.close() })
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.alternativeinfrastructures.noise.storage
+
+import android.database.Cursor
+
+import com.alternativeinfrastructures.noise.NoiseDatabase
+import com.raizlabs.android.dbflow.config.FlowManager
+import com.raizlabs.android.dbflow.data.Blob
+import com.raizlabs.android.dbflow.structure.database.DatabaseStatement
+import com.raizlabs.android.dbflow.structure.database.DatabaseWrapper
+
+import java.util.ArrayList
+import java.util.Date
+import java.util.UUID
+import java.util.concurrent.Callable
+
+import io.reactivex.Flowable
+import io.reactivex.functions.BiConsumer
+import io.reactivex.functions.Consumer
+
+// Hand-written mapping between UnknownMessage and its row, for the paths that handle every message a peer sends or
+// that a sync offers. They use one compiled statement per batch and read cursor columns by position instead of going
+// through DBFlow's query builders and model adapters for each row.
+// The columns are stored exactly like DBFlow stores them (dates as milliseconds, UUIDs as strings), so rows written
+// either way can be read either way. Typed messages and identities are rare, so they stay with DBFlow.
+internal object MessageRows {
+
+    // In the order read() expects them
+    private val COLUMNS = "`id`, `version`, `zeroBits`, `date`, `payload`, `counter`, `publicType`, " +
+            "`bloomSeeds`, `storedAt`, `expiresAt`, `forwardedAt`"
+    private val COLUMN_COUNT = 11
+
+    private val INSERT_SQL = "INSERT OR IGNORE INTO `UnknownMessage` ($COLUMNS) VALUES (" +
+            Array(COLUMN_COUNT) { "?" }.joinToString(", ") + ")"
+
+    fun database(): DatabaseWrapper {
+        return FlowManager.getDatabase(NoiseDatabase::class.java).writableDatabase
+    }
+
+    // Reuse the statement for every message inserted in a transaction, and close it afterwards
+    fun compileInsert(databaseWrapper: DatabaseWrapper): DatabaseStatement {
+        return databaseWrapper.compileStatement(INSERT_SQL)
+    }
+
+    // Returns false if a message with the same id is already stored
+    fun insert(statement: DatabaseStatement, message: UnknownMessage): Boolean {
+        statement.bindLong(1, message.id)
+        statement.bindLong(2, message.version.toLong())
+        statement.bindLong(3, message.zeroBits.toLong())
+        statement.bindLong(4, message.date.time)
+        statement.bindBlob(5, message.payload.blob)
+        statement.bindLong(6, message.counter.toLong())
+        statement.bindString(7, message.publicType.toString())
+        statement.bindBlob(8, message.bloomSeeds.blob)
+        statement.bindLong(9, message.storedAt)
+        statement.bindLong(10, message.expiresAt)
+        statement.bindLong(11, message.forwardedAt)
+        return statement.executeInsert() != -1L
+    }
+
+    // where is everything after FROM, like "WHERE `id` IN (1, 2)"
+    fun select(where: String): String {
+        return "SELECT $COLUMNS FROM `UnknownMessage` $where"
+    }
+
+    fun whereIdIn(ids: List<Long>): String {
+        // Ids are numbers, so they can go in the SQL itself
+        return "WHERE `id` IN (" + ids.joinToString(", ") + ")"
+    }
+
+    fun read(cursor: Cursor): UnknownMessage {
+        val message = UnknownMessage()
+        message.id = cursor.getLong(0)
+        message.version = cursor.getInt(1).toByte()
+        message.zeroBits = cursor.getInt(2).toByte()
+        message.date = Date(cursor.getLong(3))
+        message.payload = Blob(cursor.getBlob(4))
+        message.counter = cursor.getInt(5)
+        message.publicType = UUID.fromString(cursor.getString(6))
+        message.bloomSeeds = Blob(cursor.getBlob(7))
+        message.storedAt = cursor.getLong(8)
+        message.expiresAt = cursor.getLong(9)
+        message.forwardedAt = cursor.getLong(10)
+        return message
+    }
+
+    @JvmOverloads
+    fun queryList(sql: String, databaseWrapper: DatabaseWrapper = database()): List<UnknownMessage> {
+        val messages = ArrayList<UnknownMessage>()
+        databaseWrapper.rawQuery(sql, null).use { cursor ->
+            while (cursor.moveToNext())
+                messages.add(read(cursor))
+        }
+        return messages
+    }
+
+    // Reads the messages as they are requested
+    fun stream(sql: String): Flowable<UnknownMessage> {
+        return Flowable.generate<UnknownMessage, Cursor>(
+                Callable { database().rawQuery(sql, null) },
+                BiConsumer { cursor, emitter ->
+                    if (cursor.moveToNext())
+                        emitter.onNext(read(cursor))
+                    else
+                        emitter.onComplete()
+                },
+                Consumer { cursor -> cursor.close() })
+    }
+}
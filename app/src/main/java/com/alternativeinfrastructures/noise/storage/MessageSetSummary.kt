@@ -0,0 +1,25 @@
+package com.alternativeinfrastructures.noise.storage
+
+// Lossy description of a set of messages that a peer can test its own messages against, so that it only sends the
+// ones that are missing. A message in the set always tests as contained; any other message only does with the
+// summary's false positive rate, and then it is never sent.
+// MessageMatcher tests each stored message by its id and packed bloom seeds, so a summary can be keyed on either.
+interface MessageSetSummary {
+
+    enum class Kind constructor(val value: Byte) {
+        // Message vector, see BloomFilter and BloomSummary
+        BLOOM(0.toByte()),
+        // Fingerprints of message ids, see sync.CuckooFilter
+        CUCKOO(1.toByte());
+
+        companion object {
+            fun fromValue(value: Byte): Kind? {
+                return values().firstOrNull { kind -> kind.value == value }
+            }
+        }
+    }
+
+    val kind: Kind
+
+    fun mightContain(id: Long, seeds: ByteArray?): Boolean
+}
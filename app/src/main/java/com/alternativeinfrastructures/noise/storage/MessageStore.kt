@@ -0,0 +1,318 @@
+package com.alternativeinfrastructures.noise.storage
+
+import android.os.Looper
+import android.util.Log
+
+import com.raizlabs.android.dbflow.config.FlowManager
+import com.raizlabs.android.dbflow.data.Blob
+import com.raizlabs.android.dbflow.runtime.NotifyDistributor
+import com.raizlabs.android.dbflow.sql.language.Method
+import com.raizlabs.android.dbflow.sql.language.SQLite
+import com.raizlabs.android.dbflow.structure.BaseModel
+import com.raizlabs.android.dbflow.structure.database.DatabaseWrapper
+
+import java.util.ArrayList
+import java.util.concurrent.Callable
+
+import io.reactivex.Flowable
+import io.reactivex.Single
+
+object MessageStore {
+    val TAG = "MessageStore"
+
+    // Well under SQLite's default limit of 999 bound variables
+    private val IDS_PER_QUERY = 256
+
+    // Unset means there is no limit
+    @Volatile
+    var quota: StorageQuota? = null
+
+    // 512 KiB, enough to hold every id of a store with tens of thousands of messages
+    private val SEEN_ID_SLOTS = 1 shl 16
+    private val seenIds = SeenIdCache(SEEN_ID_SLOTS)
+    @Volatile
+    private var seenIdsLoaded = false
+
+    private val countLock = Any()
+    // How many messages are stored, only counted once a quota needs it. Guarded by countLock.
+    private var storedCount: Long = -1
+
+    // The last UnknownMessage.storedAt the writer handed out, see nextStoredAt
+    private var lastStoredAt: Long = 0
+
+    class ValidatedMessage(val message: UnknownMessage, val validation: ValidationResult)
+
+    // messages holds the typed version of every message in the batch (in order) whether or not it was new
+    class BatchResult(val messages: List<UnknownMessage>, val stored: Int) {
+        val duplicates: Int
+            get() = messages.size - stored
+    }
+
+    // Saves a batch of messages in a single transaction so that the whole batch costs one commit.
+    // Blocks until it commits, so don't call this from a thread that shouldn't wait on the database.
+    @Throws(UnknownMessage.InvalidMessageException::class)
+    fun saveBatch(batch: List<ValidatedMessage>): BatchResult {
+        if (Looper.getMainLooper() == Looper.myLooper())
+            Log.e(TAG, "Attempting to save on the UI thread")
+
+        return saveBatchAsync(batch).blockingGet()
+    }
+
+    // Batches saved at the same time can share one transaction, see MessageWriter
+    fun saveBatchAsync(batch: List<ValidatedMessage>): Single<BatchResult> {
+        return Single.defer { MessageWriter.submit(prepareSave(batch)) }
+    }
+
+    // Everything that doesn't need the database, like parsing typed messages, happens before the write is queued
+    @Throws(UnknownMessage.InvalidMessageException::class)
+    private fun prepareSave(batch: List<ValidatedMessage>): MessageWriter.Write<BatchResult> {
+        val typedMessages = ArrayList<UnknownMessage>(batch.size)
+        for (validated in batch) {
+            if (!validated.validation.isValid)
+                throw UnknownMessage.InvalidMessageException(validated.validation.reason)
+
+            validated.message.id = validated.validation.id
+            validated.message.bloomSeeds = Blob(BloomFilter.seedsFromDigest(validated.validation.hash!!))
+            validated.message.expiresAt = UnknownMessage.expiryOf(validated.message.zeroBits, validated.message.date)
+            typedMessages.add(MessageTypes.downcastIfKnown(validated.message) ?: validated.message)
+        }
+
+        val storedMessages = ArrayList<UnknownMessage>(batch.size)
+        val evictedMessages = ArrayList<UnknownMessage>()
+        return MessageWriter.Write({ databaseWrapper: DatabaseWrapper ->
+            storedMessages.clear() // In case the transaction is retried
+            evictedMessages.clear()
+            val storedAt = nextStoredAt(databaseWrapper)
+            val insert = MessageRows.compileInsert(databaseWrapper)
+            try {
+                for ((index, validated) in batch.withIndex()) {
+                    // Ids come from the hash, so a single primary key probe finds a message that is already stored
+                    // TODO: A payload someone intentionally signed again is a different message now; keep only the one that expires later
+                    val message = validated.message
+                    message.storedAt = storedAt
+                    if (!MessageRows.insert(insert, message)) {
+                        Log.d(TAG, "Skipped saving an existing message")
+                        continue
+                    }
+
+                    // DBFlow doesn't automatically add base classes as their own row
+                    // TODO: UnknownMessage and its typed counterpart need to have the same lifetime
+                    val typedMessage = typedMessages[index]
+                    if (typedMessage !== message) {
+                        typedMessage.storedAt = storedAt
+                        typedMessage.saveReferences(databaseWrapper)
+                        FlowManager.getModelAdapter(typedMessage.javaClass).insert(typedMessage, databaseWrapper)
+                    }
+
+                    storedMessages.add(message)
+                }
+            } finally {
+                insert.close()
+            }
+
+            synchronized(countLock) {
+                if (storedCount >= 0)
+                    storedCount += storedMessages.size
+            }
+            val currentQuota = quota
+            if (currentQuota != null)
+                evictedMessages.addAll(evict(currentQuota, databaseWrapper))
+        }, {
+            // Duplicates are stored too, only not by this batch
+            for (validated in batch)
+                seenIds.add(validated.message.id)
+            MessageVector.messagesAdded(storedMessages)
+            EpochVectors.messagesAdded(storedMessages)
+            // Only after adding, since newly stored messages can be evicted right away
+            messagesDeleted(evictedMessages)
+            // Rows inserted without DBFlow's models don't notify anything watching the table on their own
+            if (!storedMessages.isEmpty())
+                NotifyDistributor.get().notifyTableChanged(UnknownMessage::class.java, BaseModel.Action.INSERT)
+
+            Log.d(TAG, "Saved " + storedMessages.size + " of " + batch.size + " messages")
+            if (!evictedMessages.isEmpty())
+                Log.d(TAG, "Evicted " + evictedMessages.size + " messages to stay within " + quota?.maxMessages)
+            BatchResult(typedMessages, storedMessages.size)
+        })
+    }
+
+    // Local time for the messages a write is storing, but always later than anything stored before. Writes commit in
+    // the order they get this in, so a peer that was sent everything up to latestStoredAt() can't miss a message that
+    // was still being written at the time, even if the clock goes backwards. Only called from the writer.
+    private fun nextStoredAt(databaseWrapper: DatabaseWrapper): Long {
+        // The newest message may have been deleted since, so remember what was handed out too
+        val latest = SQLite.select(Method.max(UnknownMessage_Table.storedAt)).from(UnknownMessage::class.java)
+                .longValue(databaseWrapper)
+        lastStoredAt = Math.max(System.currentTimeMillis(), Math.max(latest, lastStoredAt) + 1)
+        return lastStoredAt
+    }
+
+    // Deletes the messages with the given ids along with their typed rows. Emits how many of them were still stored.
+    fun deleteAsync(ids: List<Long>): Single<Long> {
+        // Read from the store so that only rows that are actually deleted, with their stored seeds, update the vectors
+        val deletedMessages = ArrayList<UnknownMessage>()
+        return MessageWriter.submit(MessageWriter.Write({ databaseWrapper: DatabaseWrapper ->
+            deletedMessages.clear() // In case the transaction is retried
+            for (chunk in ids.chunked(IDS_PER_QUERY))
+                deletedMessages.addAll(MessageRows.queryList(MessageRows.select(MessageRows.whereIdIn(chunk)), databaseWrapper))
+            deleteMessages(deletedMessages, databaseWrapper)
+        }, {
+            messagesDeleted(deletedMessages)
+            deletedMessages.size.toLong()
+        }))
+    }
+
+    // Deletes whatever the quota's policy picks first until the store is within it. Must be called from within the
+    // transaction that stored the last messages, so that the quota holds whenever it commits.
+    private fun evict(quota: StorageQuota, databaseWrapper: DatabaseWrapper): List<UnknownMessage> {
+        val count = synchronized(countLock) {
+            if (storedCount < 0)
+                storedCount = SQLite.selectCountOf().from(UnknownMessage::class.java).longValue(databaseWrapper)
+            storedCount
+        }
+        if (count <= quota.maxMessages)
+            return emptyList()
+
+        // TODO: Ordering by the policy's columns sorts every row; index them if eviction turns out to be frequent
+        val victims = MessageRows.queryList(
+                MessageRows.select(quota.policy.orderBy + " LIMIT " + (count - quota.maxMessages)), databaseWrapper)
+        deleteMessages(victims, databaseWrapper)
+        return victims
+    }
+
+    // Deletes messages along with their typed rows and returns how many were deleted. Must be called from within a
+    // transaction, and messagesDeleted has to be called once it commits.
+    internal fun deleteMessages(messages: List<UnknownMessage>, databaseWrapper: DatabaseWrapper): Long {
+        // DBFlow doesn't delete typed messages with their base rows, see saveBatch
+        for ((publicType, typedMessages) in messages.groupBy { message -> message.publicType }) {
+            val typedClass = MessageTypes[publicType] ?: continue
+            for (chunk in typedMessages.map { message -> message.id }.chunked(IDS_PER_QUERY))
+                SQLite.delete(typedClass).where(UnknownMessage_Table.id.`in`(chunk)).execute(databaseWrapper)
+        }
+
+        var deleted = 0L
+        for (chunk in messages.map { message -> message.id }.chunked(IDS_PER_QUERY))
+            deleted += SQLite.delete(UnknownMessage::class.java).where(UnknownMessage_Table.id.`in`(chunk))
+                    .executeUpdateDelete(databaseWrapper)
+        synchronized(countLock) {
+            if (storedCount >= 0)
+                storedCount = Math.max(0L, storedCount - deleted)
+        }
+        return deleted
+    }
+
+    // Must be called after the messages' transaction has committed
+    internal fun messagesDeleted(messages: List<UnknownMessage>) {
+        if (messages.isEmpty())
+            return
+
+        for (message in messages)
+            seenIds.remove(message.id)
+        MessageVector.messagesDeleted(messages)
+        EpochVectors.messagesDeleted(messages)
+        NotifyDistributor.get().notifyTableChanged(UnknownMessage::class.java, BaseModel.Action.DELETE)
+    }
+
+    // True only if a message with this id is definitely stored. False means it might be stored or not.
+    // Lets received duplicates be dropped without a transaction. The ids are read from the store when this is first called.
+    fun isKnownStored(id: Long): Boolean {
+        if (!seenIdsLoaded)
+            loadSeenIds()
+        return seenIds.contains(id)
+    }
+
+    private fun loadSeenIds() {
+        synchronized(seenIds) {
+            if (seenIdsLoaded)
+                return
+
+            // Expired messages are included, since they are still stored
+            val idCursor = SQLite.select(UnknownMessage_Table.id).from(UnknownMessage::class.java).query()
+            idCursor?.use {
+                while (idCursor.moveToNext())
+                    seenIds.add(idCursor.getLong(0))
+            }
+            seenIdsLoaded = true
+        }
+    }
+
+    // Records that messages were just sent to a peer, for StorageQuota.EvictionPolicy.LEAST_RECENTLY_FORWARDED.
+    // Emits how many of them were still stored.
+    @JvmOverloads
+    fun markForwardedAsync(ids: List<Long>, forwardedAt: Long = System.currentTimeMillis()): Single<Long> {
+        if (ids.isEmpty())
+            return Single.just(0L)
+
+        var updated = 0L
+        return MessageWriter.submit(MessageWriter.Write({ databaseWrapper: DatabaseWrapper ->
+            updated = 0L // In case the transaction is retried
+            for (chunk in ids.chunked(IDS_PER_QUERY))
+                updated += SQLite.update(UnknownMessage::class.java).set(UnknownMessage_Table.forwardedAt.eq(forwardedAt))
+                        .where(UnknownMessage_Table.id.`in`(chunk)).executeUpdateDelete(databaseWrapper)
+        }, { updated }))
+    }
+
+    // Forgets the stored count and ids, like after the database is replaced
+    internal fun reset() {
+        forgetCount()
+        synchronized(seenIds) {
+            seenIds.clear()
+            seenIdsLoaded = false
+        }
+    }
+
+    // The count is read again the next time a quota needs it, like after a transaction that changed it rolled back
+    internal fun forgetCount() {
+        synchronized(countLock) {
+            storedCount = -1
+        }
+    }
+
+    // Every stored id of a message that hasn't expired, which is much cheaper to read than the messages themselves
+    @JvmOverloads
+    fun loadIds(now: Long = System.currentTimeMillis()): LongArray {
+        val idCursor = SQLite.select(UnknownMessage_Table.id).from(UnknownMessage::class.java)
+                .where(UnknownMessage_Table.expiresAt.greaterThan(now)).query()
+                ?: return LongArray(0)
+        idCursor.use {
+            val ids = LongArray(idCursor.count)
+            var index = 0
+            while (idCursor.moveToNext() && index < ids.size)
+                ids[index++] = idCursor.getLong(0)
+            return if (index == ids.size) ids else ids.copyOf(index)
+        }
+    }
+
+    // Loads the messages with the given ids a chunk at a time as they are requested. Ids that aren't stored are skipped.
+    fun loadMessages(ids: List<Long>): Flowable<UnknownMessage> {
+        return Flowable.fromIterable(ids.chunked(IDS_PER_QUERY)).concatMapIterable { chunk ->
+            MessageRows.queryList(MessageRows.select(MessageRows.whereIdIn(chunk)))
+        }
+    }
+
+    // Like loadMessages, but in the same order as ids. Ids of messages that were deleted meanwhile are skipped.
+    fun loadMessagesInOrder(ids: List<Long>): Flowable<UnknownMessage> {
+        return Flowable.fromIterable(ids.chunked(IDS_PER_QUERY)).concatMapIterable { chunk ->
+            val messagesById = MessageRows.queryList(MessageRows.select(MessageRows.whereIdIn(chunk)))
+                    .associateBy { message -> message.id }
+            chunk.mapNotNull { id -> messagesById[id] }
+        }
+    }
+
+    // Every message that summary doesn't contain, read as they are requested
+    fun loadMessagesMissingFrom(summary: MessageSetSummary): Flowable<UnknownMessage> {
+        return MessageMatcher.stream(Callable { MessageMatcher(summary, missing = true) })
+    }
+
+    // Newest UnknownMessage.storedAt, or 0 if nothing is stored. Every message committed after this is read is stored
+    // later than it, see nextStoredAt.
+    fun latestStoredAt(): Long {
+        return SQLite.select(Method.max(UnknownMessage_Table.storedAt)).from(UnknownMessage::class.java).longValue()
+    }
+
+    // Messages stored at or after storedAt that haven't expired, read as they are requested
+    @JvmOverloads
+    fun loadMessagesStoredSince(storedAt: Long, now: Long = System.currentTimeMillis()): Flowable<UnknownMessage> {
+        return MessageRows.stream(MessageRows.select("WHERE `storedAt` >= $storedAt AND `expiresAt` > $now"))
+    }
+}
@@ -0,0 +1,262 @@
+package com.alternativeinfrastructures.noise.storage
+
+import android.util.Log
+
+import com.alternativeinfrastructures.noise.NoiseDatabase
+import com.raizlabs.android.dbflow.config.FlowManager
+import com.raizlabs.android.dbflow.sql.language.SQLite
+import com.raizlabs.android.dbflow.structure.database.DatabaseWrapper
+
+import java.io.File
+import java.io.IOException
+import java.util.BitSet
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+import okio.Okio
+
+// Authoritative in-memory copy of this device's message vector.
+// It is updated as messages are saved and deleted instead of being rebuilt from every stored message for every sync,
+// and it is snapshotted to a file so that starting the app doesn't have to rebuild it from SQL either.
+// The source of truth is a CountingMessageVector, so deleting or expiring a message clears the bits nothing else uses.
+// The plain BitSet derived from it is copy-on-write: the one returned by get() is never modified, so concurrent
+// syncs can share it.
+// The vector is sized for the number of stored messages (see FilterParameters.forMessageCount). Once the count
+// outgrows it, or shrinks far below it, every message's indices are recounted from its stored bloom seeds in the
+// background and the new vector replaces the old one with its parameters.
+object MessageVector {
+    val TAG = "MessageVector"
+
+    private val SNAPSHOT_FILE_NAME = "message_vector"
+    private val SNAPSHOT_MAGIC = 0x4e4d5634 // "NMV4"
+    private val SNAPSHOT_DELAY_MS = 5000L
+    private val REINDEX_DELAY_MS = 1000L
+
+    // A vector and the parameters it was built with, which only change together
+    class State(val parameters: FilterParameters, val vector: BitSet)
+
+    private val lock = Any()
+    private val snapshotExecutor = Executors.newSingleThreadScheduledExecutor()
+
+    private var snapshotFile: File? = null
+    private var snapshotScheduled = false
+    // Whether the snapshot file holds what is in memory now. It is deleted as soon as it doesn't.
+    private var snapshotCurrent = false
+    private var reindexScheduled = false
+
+    // All of these are unset until the vector is loaded and are only replaced while holding the lock
+    @Volatile
+    private var current: State? = null
+    private var counts: CountingMessageVector? = null
+    private var messageCount: Long = 0
+    // Bumped by every update, so that a snapshot can tell whether anything changed since it was written
+    private var modifications: Long = 0
+
+    // Called once the app starts. Loading is deferred until the vector is first needed so it stays off the UI thread.
+    fun initialize(filesDir: File) {
+        synchronized(lock) {
+            snapshotFile = File(filesDir, SNAPSHOT_FILE_NAME)
+            current = null
+            counts = null
+            snapshotCurrent = false
+        }
+    }
+
+    fun get(): BitSet {
+        return state().vector
+    }
+
+    fun parameters(): FilterParameters {
+        return state().parameters
+    }
+
+    fun state(): State {
+        val state = current
+        if (state != null)
+            return state
+
+        synchronized(lock) {
+            if (current == null)
+                load()
+            return current!!
+        }
+    }
+
+    // Must be called after the messages' transaction has committed
+    internal fun messagesAdded(messages: List<UnknownMessage>) {
+        update(messages, +1)
+    }
+
+    // Must be called after the messages' transaction has committed. Takes O(NUM_HASHES) per message.
+    internal fun messagesDeleted(messages: List<UnknownMessage>) {
+        update(messages, -1)
+    }
+
+    private fun update(messages: List<UnknownMessage>, direction: Int) {
+        if (messages.isEmpty())
+            return
+
+        synchronized(lock) {
+            // If nothing is loaded yet, the next load will read these changes from the database
+            val messageCounts = counts ?: return
+            val parameters = current!!.parameters
+            // Saved messages always have seeds, and so do the ones loaded to be deleted
+            val updatedVector = messageCounts.update(
+                    current!!.vector, messages.map { message -> message.bloomSeeds.blob }, BloomIndexer(parameters), direction)
+
+            messageCount += direction * messages.size
+            ++modifications
+            if (updatedVector != null)
+                current = State(parameters, updatedVector)
+            // Don't leave a snapshot behind that would be trusted if the app stopped before the next one is written
+            discardSnapshot()
+            scheduleSnapshot()
+            if (!parameters.suits(messageCount))
+                scheduleReindex()
+        }
+    }
+
+    private fun load() {
+        if (loadSnapshot())
+            return
+
+        val started = System.nanoTime()
+        var parameters = BloomFilter.DEFAULT_PARAMETERS
+        FlowManager.getDatabase(NoiseDatabase::class.java).beginTransactionAsync { databaseWrapper: DatabaseWrapper ->
+            // Both reads happen in one transaction so that the count matches the vector
+            messageCount = SQLite.selectCountOf().from(UnknownMessage::class.java).longValue(databaseWrapper)
+            parameters = FilterParameters.forMessageCount(messageCount)
+            counts = BloomFilter.countMessageVector(databaseWrapper, parameters)
+        }.build().executeSync()
+        current = State(parameters, counts!!.toBitSet())
+        Log.d(TAG, "Rebuilt the message vector from the database in " + (System.nanoTime() - started) / 1000000 + " ms")
+
+        scheduleSnapshot()
+    }
+
+    private fun scheduleReindex() {
+        if (reindexScheduled)
+            return
+
+        reindexScheduled = true
+        snapshotExecutor.schedule(Runnable { reindex() }, REINDEX_DELAY_MS, TimeUnit.MILLISECONDS)
+    }
+
+    // Counts every message again with parameters for the current message count. The count runs as a write on
+    // MessageWriter, so nothing commits while it reads. Writes committed before it have already updated the old counts,
+    // and writes committed after it update the new ones, because the writer calls update() in commit order.
+    private fun reindex() {
+        synchronized(lock) {
+            reindexScheduled = false
+            if (current == null || current!!.parameters.suits(messageCount))
+                return
+        }
+
+        val started = System.nanoTime()
+        var countedMessages: Long = 0
+        var parameters = BloomFilter.DEFAULT_PARAMETERS
+        var reindexedCounts: CountingMessageVector? = null
+        MessageWriter.submit(MessageWriter.Write({ databaseWrapper: DatabaseWrapper ->
+            countedMessages = SQLite.selectCountOf().from(UnknownMessage::class.java).longValue(databaseWrapper)
+            parameters = FilterParameters.forMessageCount(countedMessages)
+            reindexedCounts = BloomFilter.countMessageVector(databaseWrapper, parameters)
+        }, {
+            synchronized(lock) {
+                // Unless everything was unloaded meanwhile, in which case the next load counts again anyway
+                if (current != null) {
+                    messageCount = countedMessages
+                    counts = reindexedCounts
+                    current = State(parameters, reindexedCounts!!.toBitSet())
+                    scheduleSnapshot()
+                }
+            }
+        })).blockingGet()
+        Log.d(TAG, "Re-indexed $countedMessages messages for $parameters in " + (System.nanoTime() - started) / 1000000 + " ms")
+    }
+
+    // A snapshot only exists while nothing has been saved or deleted since it was written (see discardSnapshot), and
+    // it is still checked against the number of messages in the database in case that was changed some other way
+    private fun loadSnapshot(): Boolean {
+        val file = snapshotFile
+        if (file == null || !file.exists())
+            return false
+
+        try {
+            Okio.buffer(Okio.source(file)).use { source ->
+                if (source.readInt() != SNAPSHOT_MAGIC)
+                    return false
+
+                val parameters = FilterParameters.readFrom(source)
+                val snapshotCount = source.readLong()
+                val snapshotModifications = source.readLong()
+                val snapshotCounts = CountingMessageVector.readFrom(source, parameters.usableSize)
+                val databaseCount = SQLite.selectCountOf().from(UnknownMessage::class.java).longValue()
+                if (snapshotCount != databaseCount) {
+                    Log.d(TAG, "Ignoring a snapshot of $snapshotCount messages when there are $databaseCount")
+                    return false
+                }
+
+                messageCount = snapshotCount
+                modifications = snapshotModifications
+                snapshotCurrent = true
+                counts = snapshotCounts
+                current = State(parameters, snapshotCounts.toBitSet())
+                Log.d(TAG, "Loaded the message vector from a snapshot")
+                if (!parameters.suits(messageCount))
+                    scheduleReindex()
+                return true
+            }
+        } catch (e: IOException) {
+            Log.e(TAG, "Couldn't read the message vector snapshot", e)
+            return false
+        }
+    }
+
+    private fun discardSnapshot() {
+        if (!snapshotCurrent)
+            return
+
+        snapshotCurrent = false
+        val file = snapshotFile ?: return
+        if (file.exists() && !file.delete())
+            Log.e(TAG, "Couldn't delete the outdated message vector snapshot")
+    }
+
+    private fun scheduleSnapshot() {
+        if (snapshotFile == null || snapshotScheduled)
+            return
+
+        snapshotScheduled = true
+        snapshotExecutor.schedule(Runnable { writeSnapshot() }, SNAPSHOT_DELAY_MS, TimeUnit.MILLISECONDS)
+    }
+
+    private fun writeSnapshot() {
+        // The counters are mutable, so hold the lock while writing them. This only happens every few seconds.
+        synchronized(lock) {
+            snapshotScheduled = false
+            val file = snapshotFile ?: return
+            val snapshotCounts = counts ?: return
+            val parameters = current?.parameters ?: return
+
+            // Write to a temporary file first so that a crash can't leave a truncated snapshot behind
+            val temporaryFile = File(file.path + ".tmp")
+            try {
+                Okio.buffer(Okio.sink(temporaryFile)).use { sink ->
+                    sink.writeInt(SNAPSHOT_MAGIC)
+                    parameters.writeTo(sink)
+                    sink.writeLong(messageCount)
+                    sink.writeLong(modifications)
+                    snapshotCounts.writeTo(sink)
+                }
+                if (temporaryFile.renameTo(file))
+                    snapshotCurrent = true
+                else
+                    Log.e(TAG, "Couldn't replace the message vector snapshot")
+            } catch (e: IOException) {
+                Log.e(TAG, "Couldn't write the message vector snapshot", e)
+            } finally {
+                temporaryFile.delete()
+            }
+        }
+    }
+}
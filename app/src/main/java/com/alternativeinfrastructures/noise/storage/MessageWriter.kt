@@ -0,0 +1,95 @@
+package com.alternativeinfrastructures.noise.storage
+
+import android.util.Log
+
+import com.alternativeinfrastructures.noise.NoiseDatabase
+import com.raizlabs.android.dbflow.config.FlowManager
+import com.raizlabs.android.dbflow.structure.database.DatabaseWrapper
+
+import java.util.ArrayList
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executors
+
+import io.reactivex.Single
+import io.reactivex.SingleEmitter
+import io.reactivex.schedulers.Schedulers
+
+// The only thread that writes to the message store. Every mutation is queued here, and whatever is queued by the time
+// the writer gets to it is applied in one transaction, so concurrent writers (an ingest pipeline per peer, the
+// compactor, the UI) share commits instead of contending for the database and blocking whatever pool they run on.
+// Each write's Single succeeds once its transaction has committed and the caches have caught up with it.
+internal object MessageWriter {
+    val TAG = "MessageWriter"
+
+    // Bounds how long a single transaction holds the database when a lot is queued at once
+    private val MAX_WRITES_PER_TRANSACTION = 64
+
+    private val queue = ConcurrentLinkedQueue<Pending<*>>()
+    private val executor = Executors.newSingleThreadExecutor { runnable -> Thread(runnable, TAG) }
+
+    // apply runs in a transaction that may be shared with other writes and may be retried, so it has to start over
+    // every time it is called. committed runs on the writer once the transaction has committed.
+    class Write<T>(val apply: (DatabaseWrapper) -> Unit, val committed: () -> T)
+
+    private class Pending<T>(val write: Write<T>, val emitter: SingleEmitter<T>) {
+        fun complete() {
+            try {
+                emitter.onSuccess(write.committed())
+            } catch (e: Exception) {
+                emitter.tryOnError(e)
+            }
+        }
+    }
+
+    // Results are observed on the io pool so that nothing downstream of them holds up the writer
+    fun <T> submit(write: Write<T>): Single<T> {
+        return Single.create<T> { emitter: SingleEmitter<T> ->
+            queue.add(Pending(write, emitter))
+            executor.execute { drain() }
+        }.observeOn(Schedulers.io())
+    }
+
+    // Every submit queues a drain, so there is always one left for anything this one doesn't fit in its transaction
+    private fun drain() {
+        val pending = ArrayList<Pending<*>>()
+        while (pending.size < MAX_WRITES_PER_TRANSACTION)
+            pending.add(queue.poll() ?: break)
+        if (pending.isEmpty())
+            return
+
+        try {
+            commit(pending)
+        } catch (e: Exception) {
+            if (pending.size == 1) {
+                pending[0].emitter.tryOnError(e)
+                return
+            }
+
+            // One failing write shouldn't fail everything it was coalesced with, so give each its own transaction
+            Log.e(TAG, "Failed to commit " + pending.size + " writes together, retrying them one at a time", e)
+            for (write in pending) {
+                try {
+                    commit(listOf(write))
+                } catch (e: Exception) {
+                    write.emitter.tryOnError(e)
+                }
+            }
+        }
+    }
+
+    private fun commit(pending: List<Pending<*>>) {
+        try {
+            FlowManager.getDatabase(NoiseDatabase::class.java).beginTransactionAsync { databaseWrapper: DatabaseWrapper ->
+                for (write in pending)
+                    write.write.apply(databaseWrapper)
+            }.build().executeSync()
+        } catch (e: Exception) {
+            // Whatever the rolled back writes counted never happened
+            MessageStore.forgetCount()
+            throw e
+        }
+
+        for (write in pending)
+            write.complete()
+    }
+}
@@ -0,0 +1,62 @@
+package com.alternativeinfrastructures.noise.storage
+
+import java.io.IOException
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+
+// Searches for a proof-of-work counter on several threads at once.
+// The 32-bit counter space is split into one contiguous range per worker. invokeAny returns as soon as one worker
+// finds a valid counter and then interrupts the others, so the first valid nonce cancels the rest of the search.
+class ParallelSigner(val threads: Int = DEFAULT_THREADS) {
+
+    class CounterSpaceExhaustedException : Exception()
+
+    init {
+        if (threads < 1)
+            throw IllegalArgumentException("Signing needs at least one thread, not $threads")
+    }
+
+    @Throws(InterruptedException::class, ExecutionException::class)
+    fun findCounter(message: UnknownMessage): Int {
+        val executor = Executors.newFixedThreadPool(threads)
+        try {
+            val rangeSize = COUNTER_SPACE / threads
+            val workers = (0 until threads).map { worker ->
+                val start = worker * rangeSize
+                val end = if (worker == threads - 1) COUNTER_SPACE else start + rangeSize
+                Callable<Int> { search(message, start, end) }
+            }
+            return executor.invokeAny(workers)
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    @Throws(IOException::class, InterruptedException::class, CounterSpaceExhaustedException::class)
+    private fun search(message: UnknownMessage, start: Long, end: Long): Int {
+        // Each worker gets its own engine because the search patches the counter in place
+        val engine = ProofOfWorkEngine(message)
+        var counter = start
+        while (counter < end) {
+            if (counter and INTERRUPT_CHECK_MASK == 0L && Thread.interrupted())
+                throw InterruptedException()
+
+            if (engine.isValid(counter.toInt()))
+                return counter.toInt()
+            ++counter
+        }
+
+        throw CounterSpaceExhaustedException()
+    }
+
+    companion object {
+        val TAG = "ParallelSigner"
+
+        val DEFAULT_THREADS = Runtime.getRuntime().availableProcessors()
+
+        // Every possible value of the 32-bit counter, including the ones that are negative as an Int
+        private val COUNTER_SPACE = 1L shl 32
+        private val INTERRUPT_CHECK_MASK = (1L shl 10) - 1
+    }
+}
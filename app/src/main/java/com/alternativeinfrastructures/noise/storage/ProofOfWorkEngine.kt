@@ -0,0 +1,26 @@
+package com.alternativeinfrastructures.noise.storage
+
+import java.io.IOException
+
+import util.hash.Sha256Midstate
+
+// Checks candidate counters for a single message without reserializing or reallocating anything.
+// The message is serialized once, the SHA-256 state for every block before the counter is precomputed,
+// and each attempt only patches the four counter bytes in place before finishing the hash.
+internal class ProofOfWorkEngine @Throws(IOException::class) constructor(message: UnknownMessage) {
+
+    private val zeroBits = message.zeroBits.toInt()
+    private val hasher = Sha256Midstate(message.writeToByteArray(), COUNTER_OFFSET)
+    private val hash = IntArray(Sha256Midstate.DIGEST_WORDS)
+
+    fun isValid(counter: Int): Boolean {
+        hasher.putInt(COUNTER_OFFSET, counter)
+        hasher.digest(hash)
+        return Sha256Midstate.leadingZeroBits(hash) >= zeroBits
+    }
+
+    companion object {
+        // Matches the layout in UnknownMessage.writeToSink: version, zeroBits, date, then the payload
+        internal val COUNTER_OFFSET = 1 + 1 + 8 + UnknownMessage.PAYLOAD_SIZE
+    }
+}
@@ -0,0 +1,62 @@
+package com.alternativeinfrastructures.noise.storage
+
+import android.util.Log
+
+import com.alternativeinfrastructures.noise.NoiseDatabase
+import com.raizlabs.android.dbflow.annotation.Migration
+import com.raizlabs.android.dbflow.data.Blob
+import com.raizlabs.android.dbflow.sql.migration.BaseMigration
+import com.raizlabs.android.dbflow.structure.database.DatabaseWrapper
+
+import java.util.Date
+import java.util.UUID
+
+// Replaces every stored message's bloom seeds, which used to be a MurmurHash3 of its payload, with the ones from its
+// SHA-256 digest (see BloomFilter.seedsFromDigest). Each message is hashed once here so that it never is again.
+// Peer message vectors recorded before this were built from the old seeds, so they are forgotten.
+@Migration(version = 6, database = NoiseDatabase::class)
+class SeedsFromDigestMigration : BaseMigration() {
+
+    override fun migrate(database: DatabaseWrapper) {
+        val update = database.compileStatement("UPDATE `UnknownMessage` SET `bloomSeeds` = ? WHERE `id` = ?")
+        var migrated = 0
+        try {
+            database.rawQuery("SELECT `id`, `version`, `zeroBits`, `date`, `payload`, `counter`, `publicType` " +
+                    "FROM `UnknownMessage`", null).use { cursor ->
+                val message = UnknownMessage()
+                while (cursor.moveToNext()) {
+                    val payload = cursor.getBlob(4)
+                    if (payload == null || payload.size != UnknownMessage.PAYLOAD_SIZE)
+                        continue
+
+                    message.version = cursor.getInt(1).toByte()
+                    message.zeroBits = cursor.getInt(2).toByte()
+                    message.date = Date(cursor.getLong(3))
+                    message.payload = Blob(payload)
+                    message.counter = cursor.getInt(5)
+                    message.publicType = UUID.fromString(cursor.getString(6))
+
+                    try {
+                        update.bindBlob(1, BloomFilter.seedsFromDigest(message.calculateHash()))
+                    } catch (e: UnknownMessage.NotHashableException) {
+                        Log.e(TAG, "Couldn't hash a stored message", e)
+                        continue
+                    }
+                    update.bindLong(2, cursor.getLong(0))
+                    update.executeUpdateDelete()
+                    ++migrated
+                }
+            }
+        } finally {
+            update.close()
+        }
+
+        database.execSQL("UPDATE `PeerSyncRecord` SET `peerMessageVector` = NULL, `filterVersion` = " +
+                FilterParameters.SHA256_DOUBLE_HASHING)
+        Log.d(TAG, "Derived the bloom seeds of $migrated messages from their digests")
+    }
+
+    companion object {
+        val TAG = "SeedsFromDigestMigration"
+    }
+}
@@ -0,0 +1,44 @@
+package com.alternativeinfrastructures.noise.storage
+
+import java.util.concurrent.atomic.AtomicLongArray
+
+// Remembers the ids of some of the stored messages in a fixed amount of memory.
+// Each id can only be in one slot, picked by its hash, and a newer id takes over the slot. So finding an id means the
+// message is stored as long as deleted ids are removed too, and not finding it means nothing: the database is what
+// knows for sure. Safe to use from any thread.
+internal class SeenIdCache(val slotCount: Int) {
+
+    // 0 marks an empty slot, so a message with id 0 is never cached
+    private val slots = AtomicLongArray(slotCount)
+
+    init {
+        if (slotCount < 1 || Integer.bitCount(slotCount) != 1)
+            throw IllegalArgumentException("Slot count must be a power of two")
+    }
+
+    fun contains(id: Long): Boolean {
+        return id != 0L && slots.get(slotOf(id)) == id
+    }
+
+    fun add(id: Long) {
+        if (id != 0L)
+            slots.set(slotOf(id), id)
+    }
+
+    fun remove(id: Long) {
+        if (id != 0L)
+            slots.compareAndSet(slotOf(id), id, 0L)
+    }
+
+    fun clear() {
+        for (slot in 0 until slotCount)
+            slots.set(slot, 0L)
+    }
+
+    // Ids are already hash bits, but mix them anyway so that the slot doesn't depend on any chosen part of them
+    private fun slotOf(id: Long): Int {
+        var hash = id * -0x61c8864680b583ebL // 2^64 / golden ratio
+        hash = hash xor (hash ushr 32)
+        return (hash and (slotCount - 1).toLong()).toInt()
+    }
+}
@@ -0,0 +1,40 @@
+package com.alternativeinfrastructures.noise.storage
+
+// How many messages MessageStore keeps at most, and which ones it evicts to stay within that.
+// Eviction happens in the same transaction as saving, so a large inbound sync never leaves more than maxMessages
+// stored, even in between batches.
+class StorageQuota @JvmOverloads constructor(val maxMessages: Long, val policy: EvictionPolicy = EvictionPolicy.LOWEST_ZERO_BITS) {
+
+    init {
+        if (maxMessages < 1)
+            throw IllegalArgumentException("A quota has to leave room for at least one message")
+    }
+
+    enum class EvictionPolicy {
+        // Messages whose senders paid for the least proof of work go first, oldest first among equals
+        LOWEST_ZERO_BITS,
+        OLDEST,
+        // Messages this device hasn't sent to a peer for the longest, see UnknownMessage.forwardedAt.
+        // A message that was never forwarded counts from when it was stored, so new arrivals aren't the first to go.
+        LEAST_RECENTLY_FORWARDED;
+
+        // First victim first, see MessageRows
+        internal val orderBy: String
+            get() = when (this) {
+                LOWEST_ZERO_BITS -> "ORDER BY `zeroBits`, `date`"
+                OLDEST -> "ORDER BY `date`"
+                LEAST_RECENTLY_FORWARDED -> "ORDER BY MAX(`forwardedAt`, `storedAt`), `storedAt`"
+            }
+    }
+
+    companion object {
+        // Roughly what a stored message takes: its fields, bloom seeds, bookkeeping columns and index entries
+        val ESTIMATED_BYTES_PER_MESSAGE = UnknownMessage.SERIALIZED_SIZE + BloomFilter.SEEDS_SIZE + 64
+
+        // Leaves room for at least one message however small maxBytes is
+        @JvmOverloads
+        fun forBytes(maxBytes: Long, policy: EvictionPolicy = EvictionPolicy.LOWEST_ZERO_BITS): StorageQuota {
+            return StorageQuota(Math.max(1L, maxBytes / ESTIMATED_BYTES_PER_MESSAGE), policy)
+        }
+    }
+}
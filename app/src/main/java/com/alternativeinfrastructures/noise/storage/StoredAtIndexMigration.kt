@@ -0,0 +1,16 @@
+package com.alternativeinfrastructures.noise.storage
+
+import com.alternativeinfrastructures.noise.NoiseDatabase
+import com.raizlabs.android.dbflow.annotation.Migration
+import com.raizlabs.android.dbflow.sql.migration.BaseMigration
+import com.raizlabs.android.dbflow.structure.database.DatabaseWrapper
+
+// Indexes UnknownMessage.storedAt so that MessageStore.loadMessagesStoredSince doesn't scan every stored message.
+// This is its own migration rather than part of StoredAtMigration so that databases already past that get it too.
+@Migration(version = 10, database = NoiseDatabase::class)
+class StoredAtIndexMigration : BaseMigration() {
+
+    override fun migrate(database: DatabaseWrapper) {
+        database.execSQL("CREATE INDEX IF NOT EXISTS `index_UnknownMessage_storedAt` ON `UnknownMessage`(`storedAt`)")
+    }
+}
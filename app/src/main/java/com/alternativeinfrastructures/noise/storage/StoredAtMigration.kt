@@ -0,0 +1,21 @@
+package com.alternativeinfrastructures.noise.storage
+
+import com.alternativeinfrastructures.noise.NoiseDatabase
+import com.raizlabs.android.dbflow.annotation.Migration
+import com.raizlabs.android.dbflow.sql.migration.BaseMigration
+import com.raizlabs.android.dbflow.structure.database.DatabaseWrapper
+
+// Adds UnknownMessage.storedAt. Messages stored before this are treated as stored at time 0, so they are offered to
+// every peer that hasn't completed a sync with this device yet.
+@Migration(version = 4, database = NoiseDatabase::class)
+class StoredAtMigration : BaseMigration() {
+
+    override fun migrate(database: DatabaseWrapper) {
+        for (table in MESSAGE_TABLES)
+            database.execSQL("ALTER TABLE `$table` ADD COLUMN `storedAt` INTEGER NOT NULL DEFAULT 0")
+    }
+
+    companion object {
+        private val MESSAGE_TABLES = arrayOf("UnknownMessage", "IdentityAnnouncementMessage")
+    }
+}
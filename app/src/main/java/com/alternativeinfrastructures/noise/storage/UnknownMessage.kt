@@ -6,13 +6,12 @@ import android.util.Log
 
 import com.alternativeinfrastructures.noise.NoiseDatabase
 import com.raizlabs.android.dbflow.annotation.Column
+import com.raizlabs.android.dbflow.annotation.ConflictAction
 import com.raizlabs.android.dbflow.annotation.Index
 import com.raizlabs.android.dbflow.annotation.PrimaryKey
 import com.raizlabs.android.dbflow.annotation.Table
-import com.raizlabs.android.dbflow.config.FlowManager
 import com.raizlabs.android.dbflow.data.Blob
 import com.raizlabs.android.dbflow.rx2.structure.BaseRXModel
-import com.raizlabs.android.dbflow.sql.language.SQLite
 import com.raizlabs.android.dbflow.structure.database.DatabaseWrapper
 
 import java.io.ByteArrayOutputStream
@@ -24,6 +23,8 @@ import java.security.SecureRandom
 import java.util.Arrays
 import java.util.Date
 import java.util.UUID
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
 
 import io.reactivex.Single
 import io.reactivex.schedulers.Schedulers
@@ -31,11 +32,12 @@ import okio.BufferedSink
 import okio.BufferedSource
 import okio.Okio
 
-@Table(database = NoiseDatabase::class)
+// Inserting a message that is already stored does nothing, see MessageStore.saveBatch
+@Table(database = NoiseDatabase::class, insertConflict = ConflictAction.IGNORE)
 open class UnknownMessage : BaseRXModel {
 
-    // TODO: If we're going to subclass this the autoincrement id has to go
-    // Maybe use the last few bytes of the generated hash?
+    // The last 8 bytes of the message's hash (see idFromHash), so equal messages always have equal ids.
+    // As an INTEGER PRIMARY KEY this is SQLite's rowid, so rows are stored by it without a separate index.
     @PrimaryKey
     var id: Long = 0
 
@@ -49,7 +51,6 @@ open class UnknownMessage : BaseRXModel {
     var date = Date(0)
 
     @Column
-    @Index
     var payload = Blob()
 
     @Column
@@ -58,48 +59,58 @@ open class UnknownMessage : BaseRXModel {
     @Column
     var publicType = UUID(0, 0)
 
-    // TODO: Validate the other fields first before calculating and checking the hash
-    // (i.e. if the message is expired or we don't support the message version, return false now)
-    // TODO: Say *why* the message is invalid (probably by returning an enum instead of a boolean)
-    // TODO: Do we want to do a double hash (like Bitcoin) to avoid potential birthday collision attacks?
-    // Do we have enough zero bytes? First check the fully-zero bytes...
-    // ... then check the remaining zero bits in the last byte.
-    val isValid: Boolean
-        get() {
-            val hash: ByteArray
-            try {
-                hash = calculateHash()
-            } catch (e: NotHashableException) {
-                return false
-            }
+    // Not part of the message itself. Filled in from the message's hash when it is stored, see BloomFilter.seedsFromDigest
+    @Column
+    var bloomSeeds = Blob()
 
-            val zeroBytes = zeroBits / 8
-            if (hash.size <= zeroBytes) {
-                Log.e(TAG, "Message requires " + zeroBits + " zero bits but the hash is only " + hash.size * 8 + " bits long")
-                return false
-            }
-            for (hashIndex in 0 until zeroBytes) {
-                if (hash[hashIndex].toInt() != 0) {
-                    return false
-                }
-            }
-            val zeroBitsRemaining = zeroBits % 8
-            if (zeroBitsRemaining != 0) {
-                // Kotlin doesn't support bitwise and of bytes.
-                val lastZeroByte = hash[zeroBytes].toInt()
-                val mask = 0xFF shl 8 - zeroBitsRemaining
-                if (lastZeroByte and mask != 0) {
-                    return false
-                }
-            }
+    // Local time this device stored the message at, used to find what is new since the last sync with a peer.
+    // Assigned by the writer so that it increases in the order messages are committed, see MessageStore.nextStoredAt.
+    @Column
+    @Index
+    var storedAt: Long = 0
 
-            return true
+    // Not part of the message itself, see expiryOf. Stored so that MessageCompactor can find expired messages cheaply.
+    @Column
+    @Index
+    var expiresAt: Long = 0
+
+    // Local time this device last sent the message to a peer, or 0 if it never has. See StorageQuota.EvictionPolicy.
+    @Column
+    var forwardedAt: Long = 0
+
+    val isValid: Boolean
+        get() = validate().isValid
+
+    // Checks the cheap fields first so that junk is rejected without hashing it, then hashes at most once.
+    // TODO: Do we want to do a double hash (like Bitcoin) to avoid potential birthday collision attacks?
+    fun validate(now: Long = System.currentTimeMillis()): ValidationResult {
+        if (version != CURRENT_VERSION)
+            return ValidationResult(ValidationResult.Reason.UNSUPPORTED_VERSION)
+        if (date.time > now + MAX_CLOCK_SKEW_MS)
+            return ValidationResult(ValidationResult.Reason.DATE_IN_FUTURE)
+        if (expiryOf(zeroBits, date) <= now)
+            return ValidationResult(ValidationResult.Reason.EXPIRED)
+        if (payload.blob == null || payload.blob.size != PAYLOAD_SIZE)
+            return ValidationResult(ValidationResult.Reason.WRONG_PAYLOAD_SIZE)
+
+        val hash: ByteArray
+        try {
+            hash = calculateHash()
+        } catch (e: NotHashableException) {
+            return ValidationResult(ValidationResult.Reason.NOT_HASHABLE)
         }
 
+        val id = idFromHash(hash)
+        if (zeroBits < 0 || leadingZeroBits(hash) < zeroBits)
+            return ValidationResult(ValidationResult.Reason.INSUFFICIENT_PROOF_OF_WORK, hash, id)
+
+        return ValidationResult(ValidationResult.Reason.VALID, hash, id)
+    }
+
     constructor() {}
 
     class PayloadTooLargeException : Exception()
-    class InvalidMessageException : Exception()
+    class InvalidMessageException(val reason: ValidationResult.Reason? = null) : Exception(reason?.name)
     class NotHashableException : Exception()
 
     protected constructor(other: UnknownMessage) {
@@ -111,6 +122,10 @@ open class UnknownMessage : BaseRXModel {
         payload = other.payload
         counter = other.counter
         publicType = other.publicType
+        bloomSeeds = other.bloomSeeds
+        storedAt = other.storedAt
+        expiresAt = other.expiresAt
+        forwardedAt = other.forwardedAt
     }
 
     @Throws(IOException::class)
@@ -129,8 +144,7 @@ open class UnknownMessage : BaseRXModel {
 
     @Throws(IOException::class)
     fun writeToByteArray(): ByteArray {
-        // TODO: Add a way to calculate what the actual expected size is instead of using this guess
-        val byteStream = ByteArrayOutputStream(PAYLOAD_SIZE * 2)
+        val byteStream = ByteArrayOutputStream(SERIALIZED_SIZE)
         val byteSink = Okio.buffer(Okio.sink(byteStream))
         writeToSink(byteSink)
         byteSink.flush()
@@ -179,72 +193,53 @@ open class UnknownMessage : BaseRXModel {
 
     @Throws(NotHashableException::class)
     fun calculateId(): Long {
-        val hash = calculateHash()
-        var id: Long = 0
-        for (i in 0..7 /*bytes in a long*/)
-            id += hash[hash.size - i - 1].toLong() and 0xffL shl i * 8
-        return id
+        return idFromHash(calculateHash())
     }
 
     fun saveAsync(): Single<UnknownMessage> {
+        return saveAsync(null)
+    }
+
+    // Pass in the result of an earlier call to validate() to avoid hashing the message again
+    fun saveAsync(validation: ValidationResult?): Single<UnknownMessage> {
         val messageToSave = this
+        // Hashing is CPU work, but saving is left to MessageStore's writer
         return Single.fromCallable {
-            // TODO: Include the reason *why* the message is invalid in the exception
-            if (!messageToSave.isValid)
-                throw InvalidMessageException()
-
-            // TODO: This is duplicating work from the last call to isValid
-            messageToSave.id = messageToSave.calculateId()
-
-            val typedMessage = MessageTypes.downcastIfKnown(messageToSave)
-
-            FlowManager.getDatabase(NoiseDatabase::class.java).beginTransactionAsync { databaseWrapper: DatabaseWrapper ->
-                val equalMessages = SQLite.selectCountOf().from(UnknownMessage::class.java)
-                        .where(UnknownMessage_Table.payload.eq(messageToSave.payload)).longValue()
-                if (equalMessages > 0) {
-                    // TODO: In this case, we should keep the message that expires later - someone intentionally signed it again
-                    Log.d(TAG, "Skipped saving an existing message")
-                } else {
-                    // blockingGet is okay here because this is ultimately wrapped in a Callable
-                    messageToSave.save(databaseWrapper).blockingGet()
-
-                    // DBFlow doesn't automatically add base classes as their own row
-                    // TODO: UnknownMessage and its typed counterpart need to have the same lifetime
-                    typedMessage?.save(databaseWrapper)?.blockingGet()
-
-                    // TODO: Do this using a listener and then we won't need saveAsync anymore (message.insert() will implicitly manage the filter)
-                    // https://agrosner.gitbooks.io/dbflow/content/Observability.html
-                    BloomFilter.addMessage(messageToSave, databaseWrapper)
-                    Log.d(TAG, "Saved a message with id " + messageToSave.id)
-                }
-            }.build().executeSync()
-            typedMessage ?: messageToSave
+            val result = validation ?: messageToSave.validate()
+            if (!result.isValid)
+                throw InvalidMessageException(result.reason)
+            MessageStore.ValidatedMessage(messageToSave, result)
         }.subscribeOn(Schedulers.computation())
+                .flatMap { validated -> MessageStore.saveBatchAsync(listOf(validated)) }
+                .map { result -> result.messages[0] }
     }
 
+    // Deletes this message from the UnknownMessage table and whichever typed one it is in
     fun deleteAsync(): Single<Boolean> {
-        // Ensures that we are deleting from the UnknownMessage table first
-        val message = UnknownMessage(this)
-        val typedMessage = MessageTypes.downcastIfKnown(message)
-        return if (typedMessage != null) typedMessage.delete().flatMap { Boolean -> message.delete() } else message.delete()
+        return MessageStore.deleteAsync(listOf(id)).map { deleted -> deleted > 0 }
     }
 
-    private fun sign(): UnknownMessage {
-        // Signing will use 100% of one core for a few seconds. Don't do it on the UI thread.
-        // TODO: Sign on multiple threads
+    // Typed messages save the rows their own row refers to here. Called from within the transaction that stores them.
+    internal open fun saveReferences(databaseWrapper: DatabaseWrapper) {}
+
+    @Throws(InvalidMessageException::class)
+    private fun sign(signer: ParallelSigner): UnknownMessage {
+        // Signing will use 100% of every core it is given for a few seconds. Don't do it on the UI thread.
         // TODO: Use a memory-intensive proof-of-work function to minimize the impact of bogus messages signed by ASICs (like Ethereum)
         // http://www.ethdocs.org/en/latest/introduction/what-is-ethereum.html#how-does-ethereum-work
         if (Looper.getMainLooper() == Looper.myLooper())
             Log.e(TAG, "Attempting to sign on the UI thread")
 
-        Log.d(TAG, "Signing started")
+        Log.d(TAG, "Signing started on " + signer.threads + " threads")
 
         val started = System.nanoTime()
-        counter = 0
-        while (counter < Integer.MAX_VALUE) {
-            if (isValid)
-                break
-            ++counter
+        try {
+            counter = signer.findCounter(this)
+        } catch (e: ExecutionException) {
+            Log.e(TAG, "No counter satisfies " + zeroBits + " zero bits", e)
+            val invalidException = InvalidMessageException()
+            invalidException.initCause(e)
+            throw invalidException
         }
         val finished = System.nanoTime()
 
@@ -263,13 +258,42 @@ open class UnknownMessage : BaseRXModel {
         // TODO: Design and implement database syncing across devices
 
         val HASH_ALGORITHM = "SHA-256"
+        val CURRENT_VERSION: Byte = 2
+
+        // Messages dated further in the future than this are rejected
+        val MAX_CLOCK_SKEW_MS = 24L * 60 * 60 * 1000
         val PAYLOAD_CHARSET = Charset.forName("UTF-8")
 
         // TODO: Tune the size to something more appropriate
         val PAYLOAD_SIZE = 240
 
+        // A message with REFERENCE_ZERO_BITS lives for REFERENCE_LIFETIME_MS. Every bit more doubles both the work of
+        // signing it and how long it lives, up to MAX_LIFETIME_MS.
+        val REFERENCE_ZERO_BITS = 10
+        val REFERENCE_LIFETIME_MS = TimeUnit.DAYS.toMillis(1)
+        // EpochVectors.RETAINED_EPOCHS is derived from this, so every live message is in a retained epoch
+        val MAX_LIFETIME_MS = TimeUnit.DAYS.toMillis(30)
+
+        // When a message with zeroBits signed at date expires
+        fun expiryOf(zeroBits: Byte, date: Date): Long {
+            val extraBits = zeroBits - REFERENCE_ZERO_BITS
+            val lifetime = when {
+                // Any more and the lifetime is past the maximum anyway
+                extraBits >= 5 -> MAX_LIFETIME_MS
+                extraBits >= 0 -> Math.min(MAX_LIFETIME_MS, REFERENCE_LIFETIME_MS shl extraBits)
+                extraBits > -64 -> REFERENCE_LIFETIME_MS shr -extraBits
+                else -> 0L
+            }
+            return date.time + lifetime
+        }
+
+        // What writeToSink writes: version, zero bits, date, payload, counter and type
+        val SERIALIZED_SIZE = 1 + 1 + 8 + PAYLOAD_SIZE + 4 + 16
+
+        @JvmOverloads
         @Throws(PayloadTooLargeException::class)
-        fun rawCreateAndSignAsync(payload: ByteArray, zeroBits: Byte, publicType: UUID): Single<UnknownMessage> {
+        fun rawCreateAndSignAsync(payload: ByteArray, zeroBits: Byte, publicType: UUID,
+                                  signer: ParallelSigner = ParallelSigner()): Single<UnknownMessage> {
             var payload = payload
             if (payload.size < PAYLOAD_SIZE) {
                 val paddedPayload = ByteArray(PAYLOAD_SIZE)
@@ -281,15 +305,35 @@ open class UnknownMessage : BaseRXModel {
             }
 
             val message = UnknownMessage()
-            message.version = 2
+            message.version = CURRENT_VERSION
             message.zeroBits = zeroBits
-            // TODO: Derive an expiration from the number of zero bits
-            // Expiration should be derived from number of zero bits - the more declared zero digits in the generated hash, the further out the expiration
             message.date = Date()
             message.payload = Blob(payload)
             message.publicType = publicType
 
-            return Single.fromCallable<UnknownMessage>(message::sign).flatMap<UnknownMessage>(UnknownMessage::saveAsync).subscribeOn(Schedulers.computation())
+            // The signer brings its own worker threads, so the subscribing thread only waits for them
+            return Single.fromCallable<UnknownMessage> { message.sign(signer) }.subscribeOn(Schedulers.io())
+                    .flatMap<UnknownMessage> { signedMessage -> signedMessage.saveAsync() }
+        }
+
+        fun idFromHash(hash: ByteArray): Long {
+            var id: Long = 0
+            for (i in 0..7 /*bytes in a long*/)
+                id += hash[hash.size - i - 1].toLong() and 0xffL shl i * 8
+            return id
+        }
+
+        // Counts zero bits from the start of the hash, most significant bit of each byte first
+        fun leadingZeroBits(hash: ByteArray): Int {
+            var zeroBits = 0
+            for (hashByte in hash) {
+                // Kotlin doesn't support bitwise operations on bytes.
+                val byteZeroBits = Integer.numberOfLeadingZeros(hashByte.toInt() and 0xFF) - 24
+                zeroBits += byteZeroBits
+                if (byteZeroBits != 8)
+                    break
+            }
+            return zeroBits
         }
 
         @Throws(IOException::class)
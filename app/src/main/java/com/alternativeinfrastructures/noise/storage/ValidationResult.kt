@@ -0,0 +1,23 @@
+package com.alternativeinfrastructures.noise.storage
+
+// Outcome of UnknownMessage.validate().
+// hash and id are only available if validation got far enough to hash the message.
+class ValidationResult internal constructor(val reason: Reason, val hash: ByteArray? = null, val id: Long = 0) {
+
+    enum class Reason {
+        VALID,
+        UNSUPPORTED_VERSION,
+        DATE_IN_FUTURE,
+        EXPIRED,
+        WRONG_PAYLOAD_SIZE,
+        NOT_HASHABLE,
+        INSUFFICIENT_PROOF_OF_WORK
+    }
+
+    val isValid: Boolean
+        get() = reason == Reason.VALID
+
+    override fun toString(): String {
+        return reason.name
+    }
+}
@@ -0,0 +1,212 @@
+package com.alternativeinfrastructures.noise.sync
+
+import com.alternativeinfrastructures.noise.storage.MessageSetSummary
+
+import java.io.IOException
+import java.util.Random
+
+import okio.BufferedSink
+import okio.BufferedSource
+
+// Cuckoo filter of message ids, as described in "Cuckoo Filter: Practically Better Than Bloom" (Fan et al.).
+// Each id is kept as a 16-bit fingerprint in one of two buckets of four slots. For the same number of bytes as a
+// message vector it has a far lower false positive rate (about 8 / 2^16 at any load, against the 3% a vector is sized
+// for), so fewer messages are mistaken for ones the peer already has. Ids can also be removed without counters.
+class CuckooFilter(val bucketCount: Int) : MessageSetSummary {
+
+    // 0 means the slot is empty, so fingerprints are never 0
+    private val slots = ShortArray(bucketCount * SLOTS_PER_BUCKET)
+    // Kicks are only pseudo-random so that the same ids always produce the same filter
+    private val kickRandom = Random(KICK_SEED)
+
+    // The fingerprint left over when the filter filled up. It is still contained, but nothing else can be inserted.
+    private var victimFingerprint: Short = EMPTY
+    private var victimBucket = 0
+
+    var count = 0
+        private set
+
+    init {
+        if (bucketCount < 1 || Integer.bitCount(bucketCount) != 1)
+            throw IllegalArgumentException("Bucket count must be a power of two")
+    }
+
+    override val kind: MessageSetSummary.Kind
+        get() = MessageSetSummary.Kind.CUCKOO
+
+    override fun mightContain(id: Long, seeds: ByteArray?): Boolean {
+        return contains(id)
+    }
+
+    fun contains(id: Long): Boolean {
+        val hash = InvertibleBloomLookupTable.mix(id)
+        val fingerprint = fingerprintOf(hash)
+        val bucket = firstBucket(hash)
+        val alternate = alternateBucket(bucket, fingerprint)
+        if (victimFingerprint == fingerprint && (victimBucket == bucket || victimBucket == alternate))
+            return true
+        return indexOf(bucket, fingerprint) != -1 || indexOf(alternate, fingerprint) != -1
+    }
+
+    // Returns false if the filter is full. Everything inserted before that is still contained.
+    fun insert(id: Long): Boolean {
+        if (victimFingerprint != EMPTY)
+            return false
+
+        val hash = InvertibleBloomLookupTable.mix(id)
+        var fingerprint = fingerprintOf(hash)
+        var bucket = firstBucket(hash)
+        if (add(bucket, fingerprint) || add(alternateBucket(bucket, fingerprint), fingerprint)) {
+            ++count
+            return true
+        }
+
+        // Both buckets are full, so keep moving fingerprints to their other bucket until one fits
+        if (kickRandom.nextBoolean())
+            bucket = alternateBucket(bucket, fingerprint)
+        for (kick in 0 until MAX_KICKS) {
+            val slot = bucket * SLOTS_PER_BUCKET + kickRandom.nextInt(SLOTS_PER_BUCKET)
+            val evicted = slots[slot]
+            slots[slot] = fingerprint
+            fingerprint = evicted
+            bucket = alternateBucket(bucket, fingerprint)
+            if (add(bucket, fingerprint)) {
+                ++count
+                return true
+            }
+        }
+
+        victimFingerprint = fingerprint
+        victimBucket = bucket
+        ++count
+        return true
+    }
+
+    // Only remove ids that were inserted, or another id with the same fingerprint is lost
+    fun delete(id: Long): Boolean {
+        val hash = InvertibleBloomLookupTable.mix(id)
+        val fingerprint = fingerprintOf(hash)
+        val bucket = firstBucket(hash)
+        val alternate = alternateBucket(bucket, fingerprint)
+        if (victimFingerprint == fingerprint && (victimBucket == bucket || victimBucket == alternate)) {
+            victimFingerprint = EMPTY
+            --count
+            return true
+        }
+
+        for (candidate in intArrayOf(bucket, alternate)) {
+            val index = indexOf(candidate, fingerprint)
+            if (index == -1)
+                continue
+
+            slots[candidate * SLOTS_PER_BUCKET + index] = EMPTY
+            --count
+            // There is room for the victim again
+            if (victimFingerprint != EMPTY && (add(victimBucket, victimFingerprint) ||
+                    add(alternateBucket(victimBucket, victimFingerprint), victimFingerprint)))
+                victimFingerprint = EMPTY
+            return true
+        }
+        return false
+    }
+
+    @Throws(IOException::class)
+    fun writeTo(sink: BufferedSink) {
+        sink.writeInt(bucketCount)
+        sink.writeShort(victimFingerprint.toInt())
+        sink.writeInt(victimBucket)
+        for (slot in slots)
+            sink.writeShort(slot.toInt())
+    }
+
+    private fun indexOf(bucket: Int, fingerprint: Short): Int {
+        val start = bucket * SLOTS_PER_BUCKET
+        for (index in 0 until SLOTS_PER_BUCKET)
+            if (slots[start + index] == fingerprint)
+                return index
+        return -1
+    }
+
+    private fun add(bucket: Int, fingerprint: Short): Boolean {
+        val index = indexOf(bucket, EMPTY)
+        if (index == -1)
+            return false
+        slots[bucket * SLOTS_PER_BUCKET + index] = fingerprint
+        return true
+    }
+
+    // The fingerprint comes from the high bits of the hash and the first bucket from the low bits
+    private fun fingerprintOf(hash: Long): Short {
+        val fingerprint = (hash ushr 48).toShort()
+        return if (fingerprint != EMPTY) fingerprint else 1.toShort()
+    }
+
+    private fun firstBucket(hash: Long): Int {
+        return (hash and (bucketCount - 1).toLong()).toInt()
+    }
+
+    // Partial-key cuckoo hashing: either bucket can be found from the other and the fingerprint
+    private fun alternateBucket(bucket: Int, fingerprint: Short): Int {
+        val fingerprintHash = InvertibleBloomLookupTable.mix(fingerprint.toLong())
+        return bucket xor (fingerprintHash and (bucketCount - 1).toLong()).toInt()
+    }
+
+    companion object {
+        val SLOTS_PER_BUCKET = 4
+        val FINGERPRINT_SIZE_IN_BYTES = 2
+
+        // The same 128 KiB as a default message vector
+        val DEFAULT_BUCKETS = (1 shl 17) / (SLOTS_PER_BUCKET * FINGERPRINT_SIZE_IN_BYTES)
+        val MIN_BUCKETS = 1 shl 8
+        // 2 MiB, like the largest message vector
+        val MAX_BUCKETS = 1 shl 18
+
+        // Inserting fails well before every slot is taken, and becomes slow close to it
+        private val MAX_LOAD = 0.9
+        private val MAX_KICKS = 500
+        private val KICK_SEED = 0x4e6f697365L // "Noise"
+
+        private val EMPTY: Short = 0
+
+        // The smallest filter that should fit count ids, or null if none is small enough
+        fun forCapacity(count: Int): CuckooFilter? {
+            var buckets = MIN_BUCKETS
+            while (buckets * SLOTS_PER_BUCKET * MAX_LOAD < count && buckets < MAX_BUCKETS)
+                buckets = buckets shl 1
+            return if (buckets * SLOTS_PER_BUCKET * MAX_LOAD >= count) CuckooFilter(buckets) else null
+        }
+
+        // Grows the filter until every id fits. Returns null if they don't fit in MAX_BUCKETS.
+        fun fromIds(ids: LongArray): CuckooFilter? {
+            var filter = forCapacity(ids.size) ?: return null
+            while (true) {
+                if (ids.all { id -> filter.insert(id) })
+                    return filter
+                if (filter.bucketCount >= MAX_BUCKETS)
+                    return null
+                filter = CuckooFilter(filter.bucketCount shl 1)
+            }
+        }
+
+        @Throws(IOException::class)
+        fun readFrom(source: BufferedSource): CuckooFilter {
+            val bucketCount = source.readInt()
+            if (bucketCount < MIN_BUCKETS || bucketCount > MAX_BUCKETS || Integer.bitCount(bucketCount) != 1)
+                throw IOException("Invalid cuckoo filter of $bucketCount buckets")
+
+            val filter = CuckooFilter(bucketCount)
+            filter.victimFingerprint = source.readShort()
+            filter.victimBucket = source.readInt()
+            if (filter.victimBucket < 0 || filter.victimBucket >= bucketCount)
+                throw IOException("Cuckoo filter victim is in bucket " + filter.victimBucket)
+            for (index in filter.slots.indices) {
+                filter.slots[index] = source.readShort()
+                if (filter.slots[index] != EMPTY)
+                    ++filter.count
+            }
+            if (filter.victimFingerprint != EMPTY)
+                ++filter.count
+            return filter
+        }
+    }
+}
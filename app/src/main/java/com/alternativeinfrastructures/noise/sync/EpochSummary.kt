@@ -0,0 +1,105 @@
+package com.alternativeinfrastructures.noise.sync
+
+import com.alternativeinfrastructures.noise.storage.EpochVectors
+import com.alternativeinfrastructures.noise.storage.FilterParameters
+
+import java.io.IOException
+import java.util.ArrayList
+import java.util.BitSet
+import java.util.SortedMap
+
+import okio.BufferedSink
+import okio.BufferedSource
+import util.hash.MurmurHash3
+
+// What a peer advertises about its epoch vectors (see EpochVectors): how long its epochs are, which ones it retains,
+// and the parameters, a digest and the encoded size (see MessageVectorCodec.encodedSize) of each one's vector. Only
+// epochs both peers retain and whose vectors differ are exchanged.
+internal class EpochSummary(
+        val epochLength: Long, val firstEpoch: Long, val parameters: List<FilterParameters>, val digests: LongArray,
+        val vectorSizes: IntArray) {
+
+    val epochs: LongRange
+        get() = firstEpoch until firstEpoch + digests.size
+
+    // Both peers come up with the same epochs in the same order. Digests of vectors with different parameters say
+    // nothing about each other, so those epochs always differ.
+    fun differingEpochs(other: EpochSummary): List<Long> {
+        val differing = ArrayList<Long>()
+        for (epoch in Math.max(firstEpoch, other.firstEpoch)..Math.min(epochs.last, other.epochs.last))
+            if (parametersOf(epoch) != other.parametersOf(epoch) || digestOf(epoch) != other.digestOf(epoch))
+                differing.add(epoch)
+        return differing
+    }
+
+    fun parametersOf(epoch: Long): FilterParameters {
+        return parameters[(epoch - firstEpoch).toInt()]
+    }
+
+    // In bytes
+    fun vectorSizeOf(epoch: Long): Int {
+        return vectorSizes[(epoch - firstEpoch).toInt()]
+    }
+
+    private fun digestOf(epoch: Long): Long {
+        return digests[(epoch - firstEpoch).toInt()]
+    }
+
+    @Throws(IOException::class)
+    fun writeTo(sink: BufferedSink) {
+        sink.writeLong(epochLength)
+        sink.writeLong(firstEpoch)
+        sink.writeInt(digests.size)
+        for (index in digests.indices) {
+            parameters[index].writeTo(sink)
+            sink.writeLong(digests[index])
+            sink.writeInt(vectorSizes[index])
+        }
+    }
+
+    companion object {
+        // Far more than anyone should retain, but keeps a bad peer from making this allocate a huge array
+        private val MAX_EPOCHS = 1024
+
+        private val DIGEST_SEED = 0x45706f63 // "Epoc"
+
+        // epochVectors has to be contiguous, like EpochVectors.get returns
+        fun fromVectors(epochLength: Long, epochVectors: SortedMap<Long, EpochVectors.EpochVector>): EpochSummary {
+            val firstEpoch = if (epochVectors.isEmpty()) 0L else epochVectors.firstKey()
+            val parameters = epochVectors.values.map { epochVector -> epochVector.parameters }
+            val digests = LongArray(epochVectors.size)
+            val vectorSizes = IntArray(epochVectors.size)
+            for ((index, epochVector) in epochVectors.values.withIndex()) {
+                digests[index] = digest(epochVector.vector, epochVector.parameters)
+                vectorSizes[index] = MessageVectorCodec.encodedSize(epochVector.vector, epochVector.parameters.usableSize)
+            }
+            return EpochSummary(epochLength, firstEpoch, parameters, digests, vectorSizes)
+        }
+
+        internal fun digest(epochVector: BitSet, parameters: FilterParameters): Long {
+            val bytes = epochVector.toByteArray().copyOf(parameters.sizeInBytes)
+            val hash = MurmurHash3.LongPair()
+            MurmurHash3.murmurhash3_x64_128(bytes, 0, bytes.size, DIGEST_SEED, hash)
+            return hash.val1
+        }
+
+        @Throws(IOException::class)
+        fun readFrom(source: BufferedSource): EpochSummary {
+            val epochLength = source.readLong()
+            val firstEpoch = source.readLong()
+            val count = source.readInt()
+            if (epochLength <= 0 || count < 0 || count > MAX_EPOCHS)
+                throw IOException("Invalid epoch summary of $count epochs of $epochLength ms")
+
+            val parameters = ArrayList<FilterParameters>(count)
+            val digests = LongArray(count)
+            val vectorSizes = IntArray(count)
+            for (index in 0 until count) {
+                parameters.add(FilterParameters.readFrom(source))
+                digests[index] = source.readLong()
+                vectorSizes[index] = source.readInt()
+            }
+            return EpochSummary(epochLength, firstEpoch, parameters, digests, vectorSizes)
+        }
+    }
+}
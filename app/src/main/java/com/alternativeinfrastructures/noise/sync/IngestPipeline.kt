@@ -0,0 +1,145 @@
+package com.alternativeinfrastructures.noise.sync
+
+import android.util.Log
+
+import com.alternativeinfrastructures.noise.storage.MessageStore
+import com.alternativeinfrastructures.noise.storage.UnknownMessage
+import com.alternativeinfrastructures.noise.storage.ValidationResult
+
+import java.util.ArrayList
+import java.util.EnumMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
+import io.reactivex.Flowable
+import io.reactivex.Single
+import io.reactivex.SingleEmitter
+import io.reactivex.schedulers.Schedulers
+
+// Sits between parsing received messages and storing them.
+// Proof-of-work is verified on a fixed pool of workers, and verified messages are handed to the store on a single
+// storage thread. Every stage is bounded by queueDepth, so a peer sending a large backlog is throttled by
+// backpressure instead of growing the number of threads or the amount of buffered messages.
+// The storage thread group-commits: it saves batchSize messages, or whatever arrived within batchDelayMs, in one
+// transaction. Messages MessageStore already knows it has are counted as duplicates without one. Batches from
+// pipelines for other peers are committed by the same writer, so they can end up sharing a transaction too.
+class IngestPipeline(
+        val workers: Int = DEFAULT_WORKERS,
+        val queueDepth: Int = DEFAULT_QUEUE_DEPTH,
+        val batchSize: Int = DEFAULT_BATCH_SIZE,
+        val batchDelayMs: Long = DEFAULT_BATCH_DELAY_MS) {
+
+    class IngestStats {
+        var stored = 0
+        var duplicates = 0
+        var failed = 0
+        var transactions = 0
+        val rejected: MutableMap<ValidationResult.Reason, Int> = EnumMap(ValidationResult.Reason::class.java)
+
+        internal fun reject(reason: ValidationResult.Reason) {
+            rejected[reason] = (rejected[reason] ?: 0) + 1
+        }
+
+        override fun toString(): String {
+            return "stored $stored, duplicates $duplicates, failed $failed, rejected $rejected in $transactions transactions"
+        }
+    }
+
+    init {
+        if (workers < 1 || queueDepth < 1 || batchSize < 1 || batchDelayMs < 0)
+            throw IllegalArgumentException("Workers, queue depth and batch size must all be positive")
+    }
+
+    // Messages should be emitted from the thread that reads them, and only as fast as they are requested.
+    // onValid is called with every message that passes validation, including duplicates, before it is stored. It is
+    // always called from the storage thread, so it doesn't have to be thread-safe.
+    @JvmOverloads
+    fun ingest(messages: Flowable<UnknownMessage>, onValid: ((MessageStore.ValidatedMessage) -> Unit)? = null): Single<IngestStats> {
+        return Single.create<IngestStats> { statsEmitter: SingleEmitter<IngestStats> ->
+            val verifyExecutor = Executors.newFixedThreadPool(workers)
+            val storeExecutor = Executors.newSingleThreadScheduledExecutor()
+            val committer = GroupCommitter(storeExecutor, onValid)
+
+            val subscription = messages
+                    .parallel(workers, queueDepth)
+                    .runOn(Schedulers.from(verifyExecutor), queueDepth)
+                    .map { message -> MessageStore.ValidatedMessage(message, message.validate()) }
+                    // Merging doesn't preserve the order messages were received in, which doesn't matter to the store
+                    .sequential(queueDepth)
+                    .observeOn(Schedulers.from(storeExecutor), false /*delayError*/, queueDepth)
+                    .doFinally {
+                        verifyExecutor.shutdown()
+                        storeExecutor.shutdown()
+                    }
+                    .subscribe(
+                            { validated -> committer.add(validated) },
+                            { e ->
+                                committer.flush()
+                                statsEmitter.tryOnError(e)
+                            },
+                            {
+                                committer.flush()
+                                statsEmitter.onSuccess(committer.stats)
+                            })
+            statsEmitter.setDisposable(subscription)
+        }
+    }
+
+    // Only ever touched from the single storage thread, including the delayed flush
+    private inner class GroupCommitter(
+            private val storeExecutor: ScheduledExecutorService,
+            private val onValid: ((MessageStore.ValidatedMessage) -> Unit)?) {
+        val stats = IngestStats()
+        private val pending = ArrayList<MessageStore.ValidatedMessage>(batchSize)
+        private var delayedFlush: ScheduledFuture<*>? = null
+
+        fun add(validated: MessageStore.ValidatedMessage) {
+            if (!validated.validation.isValid) {
+                stats.reject(validated.validation.reason)
+                return
+            }
+
+            onValid?.invoke(validated)
+            // Peers often send messages that are already stored, so skip the transaction for the ones known to be
+            if (MessageStore.isKnownStored(validated.validation.id)) {
+                ++stats.duplicates
+                return
+            }
+
+            pending.add(validated)
+            if (pending.size >= batchSize)
+                flush()
+            else if (pending.size == 1)
+                delayedFlush = storeExecutor.schedule(Runnable { flush() }, batchDelayMs, TimeUnit.MILLISECONDS)
+        }
+
+        fun flush() {
+            delayedFlush?.cancel(false /*mayInterruptIfRunning*/)
+            delayedFlush = null
+            if (pending.isEmpty())
+                return
+
+            try {
+                val result = MessageStore.saveBatch(pending)
+                stats.stored += result.stored
+                stats.duplicates += result.duplicates
+            } catch (e: Exception) {
+                Log.e(TAG, "Failed to store a batch of received messages", e)
+                stats.failed += pending.size
+            }
+            ++stats.transactions
+            pending.clear()
+        }
+    }
+
+    companion object {
+        val TAG = "IngestPipeline"
+
+        val DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors()
+        val DEFAULT_QUEUE_DEPTH = 256
+        val DEFAULT_BATCH_SIZE = 128
+        val DEFAULT_BATCH_DELAY_MS = 250L
+    }
+}
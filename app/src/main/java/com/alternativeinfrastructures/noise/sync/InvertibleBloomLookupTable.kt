@@ -0,0 +1,179 @@
+package com.alternativeinfrastructures.noise.sync
+
+import com.alternativeinfrastructures.noise.storage.BloomFilter
+
+import java.io.IOException
+import java.util.ArrayDeque
+import java.util.ArrayList
+import java.util.HashSet
+
+import okio.BufferedSink
+import okio.BufferedSource
+
+// Invertible bloom lookup table of message ids, as described in "What's the Difference? Efficient Set Reconciliation
+// without Prior Context" (Eppstein et al.).
+// Each side inserts every id it has into a table of the same size. Subtracting the peer's table cancels every id both
+// sides have, so the result only has to be big enough for the ids that differ, no matter how large the stores are.
+class InvertibleBloomLookupTable(val cells: Int) {
+
+    class DecodeResult(val success: Boolean, val onlyHere: List<Long>, val onlyThere: List<Long>)
+
+    private val counts = IntArray(cells)
+    private val idSums = LongArray(cells)
+    private val checkSums = LongArray(cells)
+
+    init {
+        if (cells < NUM_HASHES || cells % NUM_HASHES != 0)
+            throw IllegalArgumentException("Cell count must be a positive multiple of $NUM_HASHES")
+    }
+
+    fun insert(id: Long) {
+        update(id, 1)
+    }
+
+    // Leaves this - other in this table
+    fun subtract(other: InvertibleBloomLookupTable) {
+        if (other.cells != cells)
+            throw IllegalArgumentException("Can't subtract a table with ${other.cells} cells from one with $cells")
+
+        for (cell in 0 until cells) {
+            counts[cell] -= other.counts[cell]
+            idSums[cell] = idSums[cell] xor other.idSums[cell]
+            checkSums[cell] = checkSums[cell] xor other.checkSums[cell]
+        }
+    }
+
+    // Destroys the table. Only succeeds if every id could be peeled off, leaving nothing behind.
+    fun decode(): DecodeResult {
+        val onlyHere = ArrayList<Long>()
+        val onlyThere = ArrayList<Long>()
+        // A table that only differs by a set of ids never peels one of them twice. Half of this one comes from the
+        // peer, which could make a few cells peel each other back and forth forever.
+        val peeledIds = HashSet<Long>()
+
+        val pureCells = ArrayDeque<Int>()
+        for (cell in 0 until cells)
+            if (isPure(cell))
+                pureCells.add(cell)
+
+        while (!pureCells.isEmpty()) {
+            val cell = pureCells.poll()
+            // Peeling an earlier cell may have changed this one
+            if (!isPure(cell))
+                continue
+
+            val id = idSums[cell]
+            val direction = counts[cell]
+            if (!peeledIds.add(id))
+                return DecodeResult(false, onlyHere, onlyThere)
+            if (direction > 0)
+                onlyHere.add(id)
+            else
+                onlyThere.add(id)
+
+            for (hashFunction in 0 until NUM_HASHES) {
+                val index = cellFor(id, hashFunction)
+                counts[index] -= direction
+                idSums[index] = idSums[index] xor id
+                checkSums[index] = checkSums[index] xor checkSum(id)
+                if (isPure(index))
+                    pureCells.add(index)
+            }
+        }
+
+        for (cell in 0 until cells)
+            if (counts[cell] != 0 || idSums[cell] != 0L || checkSums[cell] != 0L)
+                return DecodeResult(false, onlyHere, onlyThere)
+        return DecodeResult(true, onlyHere, onlyThere)
+    }
+
+    @Throws(IOException::class)
+    fun writeTo(sink: BufferedSink) {
+        sink.writeInt(cells)
+        for (cell in 0 until cells) {
+            sink.writeInt(counts[cell])
+            sink.writeLong(idSums[cell])
+            sink.writeLong(checkSums[cell])
+        }
+    }
+
+    private fun update(id: Long, direction: Int) {
+        val check = checkSum(id)
+        for (hashFunction in 0 until NUM_HASHES) {
+            val index = cellFor(id, hashFunction)
+            counts[index] += direction
+            idSums[index] = idSums[index] xor id
+            checkSums[index] = checkSums[index] xor check
+        }
+    }
+
+    private fun isPure(cell: Int): Boolean {
+        return (counts[cell] == 1 || counts[cell] == -1) && checkSums[cell] == checkSum(idSums[cell])
+    }
+
+    // Each hash function gets its own slice of the table so that one id never lands in the same cell twice
+    internal fun cellFor(id: Long, hashFunction: Int): Int {
+        val cellsPerHash = cells / NUM_HASHES
+        val hash = mix(id + hashFunction * HASH_SEED_STEP)
+        return hashFunction * cellsPerHash + ((hash ushr 1) % cellsPerHash).toInt()
+    }
+
+    companion object {
+        val NUM_HASHES = 3
+
+        // Cells needed per differing id for decoding to almost always succeed with three hash functions
+        private val CELLS_PER_DIFFERENCE = 2.0
+        private val MIN_CELLS = 30
+
+        private val HASH_SEED_STEP = -0x61c8864680b583ebL // 2^64 divided by the golden ratio
+        private val CHECK_SEED = 0x5bd1e9955bd1e995L
+
+        // Count, id sum and check sum
+        val CELL_SIZE_IN_BYTES = 4 + 8 + 8
+
+        // Larger tables would cost more than a raw message vector
+        val MAX_CELLS = BloomFilter.SIZE_IN_BYTES / CELL_SIZE_IN_BYTES / NUM_HASHES * NUM_HASHES
+
+        // A table large enough for the estimated number of differing ids, or null if that would be larger than MAX_CELLS
+        fun cellsFor(estimatedDifference: Long): Int? {
+            val needed = Math.max(MIN_CELLS.toLong(), Math.ceil(estimatedDifference * CELLS_PER_DIFFERENCE).toLong())
+            val rounded = (needed + NUM_HASHES - 1) / NUM_HASHES * NUM_HASHES
+            return if (rounded > MAX_CELLS) null else rounded.toInt()
+        }
+
+        fun fromIds(ids: LongArray, cells: Int): InvertibleBloomLookupTable {
+            val table = InvertibleBloomLookupTable(cells)
+            for (id in ids)
+                table.insert(id)
+            return table
+        }
+
+        @Throws(IOException::class)
+        fun readFrom(source: BufferedSource, expectedCells: Int): InvertibleBloomLookupTable {
+            val cells = source.readInt()
+            // Both sides size the table from the same estimate, so anything else is a protocol error
+            if (cells != expectedCells)
+                throw IOException("Expected a table of $expectedCells cells but got $cells")
+
+            val table = InvertibleBloomLookupTable(cells)
+            for (cell in 0 until cells) {
+                table.counts[cell] = source.readInt()
+                table.idSums[cell] = source.readLong()
+                table.checkSums[cell] = source.readLong()
+            }
+            return table
+        }
+
+        private fun checkSum(id: Long): Long {
+            return mix(id xor CHECK_SEED)
+        }
+
+        // Finalizer from SplitMix64. Ids are already hashes, but mixing keeps the cells independent of each other.
+        internal fun mix(value: Long): Long {
+            var mixed = value
+            mixed = (mixed xor (mixed ushr 30)) * -0x40a7b892e31b1a47L
+            mixed = (mixed xor (mixed ushr 27)) * -0x6b2fb644ecceee15L
+            return mixed xor (mixed ushr 31)
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.alternativeinfrastructures.noise.sync
+
+import com.alternativeinfrastructures.noise.storage.BloomFilter
+
+import java.io.IOException
+import java.util.BitSet
+
+import okio.Buffer
+import okio.BufferedSink
+import okio.BufferedSource
+
+// Wire encodings for message vectors.
+// A raw vector is always BloomFilter.SIZE_IN_BYTES, even though most devices only have a few bits set. The sender
+// encodes its vector every way it knows and sends whichever is smallest, tagged with a byte saying which one it used.
+// Only the usable bits are encoded; the placeholder bit from makeEmptyMessageVector is restored when decoding.
+// usableSize defaults to the global message vector's, and has to match on both ends.
+object MessageVectorCodec {
+
+    enum class Encoding constructor(internal val value: Byte) {
+        // The BitSet's bytes as is
+        RAW(0.toByte()),
+        // Varint lengths of alternating runs of clear and set bits, starting with clear
+        RUN_LENGTH(1.toByte()),
+        // Count of set bits, then the gaps between them Rice-coded with a parameter chosen from the average gap
+        RICE_GAPS(2.toByte());
+
+        companion object {
+            internal fun fromValue(value: Byte): Encoding? {
+                return values().firstOrNull { encoding -> encoding.value == value }
+            }
+        }
+    }
+
+    private val MAX_RICE_PARAMETER = 24
+
+    @Throws(IOException::class)
+    @JvmOverloads
+    fun write(messageVector: BitSet, sink: BufferedSink, usableSize: Int = BloomFilter.USABLE_SIZE): Encoding {
+        val (encoding, smallest) = smallestEncoding(messageVector, usableSize)
+        sink.writeByte(encoding.value.toInt())
+        if (smallest == null) {
+            sink.write(messageVector.toByteArray().copyOf(rawSizeInBytes(usableSize)))
+        } else {
+            sink.writeInt(smallest.size)
+            sink.write(smallest)
+        }
+        return encoding
+    }
+
+    // How many bytes write would write for messageVector
+    @JvmOverloads
+    fun encodedSize(messageVector: BitSet, usableSize: Int = BloomFilter.USABLE_SIZE): Int {
+        val smallest = smallestEncoding(messageVector, usableSize).second
+        return 1 + (if (smallest == null) rawSizeInBytes(usableSize) else 4 + smallest.size)
+    }
+
+    // The encoded bytes are null if the vector is smallest raw
+    private fun smallestEncoding(messageVector: BitSet, usableSize: Int): Pair<Encoding, ByteArray?> {
+        val rawSize = rawSizeInBytes(usableSize)
+        var encoding = Encoding.RAW
+        var smallest: ByteArray? = null
+        for (candidate in arrayOf(Encoding.RUN_LENGTH, Encoding.RICE_GAPS)) {
+            val encoded = encode(messageVector, candidate, usableSize)
+            // The length prefix counts against the compressed encodings
+            if (encoded.size + 4 < (smallest?.size?.plus(4) ?: rawSize)) {
+                encoding = candidate
+                smallest = encoded
+            }
+        }
+        return Pair(encoding, smallest)
+    }
+
+    @Throws(IOException::class)
+    @JvmOverloads
+    fun read(source: BufferedSource, usableSize: Int = BloomFilter.USABLE_SIZE): BitSet {
+        val rawSize = rawSizeInBytes(usableSize)
+        val encodingValue = source.readByte()
+        val encoding = Encoding.fromValue(encodingValue) ?: throw IOException("Unknown message vector encoding $encodingValue")
+        if (encoding == Encoding.RAW)
+            return decode(source.readByteArray(rawSize.toLong()), encoding, usableSize)
+
+        // Anything larger than a raw vector would never have been chosen
+        val length = source.readInt()
+        if (length < 0 || length > rawSize)
+            throw IOException("Encoded message vector is $length bytes")
+        return decode(source.readByteArray(length.toLong()), encoding, usableSize)
+    }
+
+    internal fun encode(messageVector: BitSet, encoding: Encoding, usableSize: Int = BloomFilter.USABLE_SIZE): ByteArray {
+        return when (encoding) {
+            Encoding.RAW -> messageVector.toByteArray().copyOf(rawSizeInBytes(usableSize))
+            Encoding.RUN_LENGTH -> encodeRuns(messageVector, usableSize)
+            Encoding.RICE_GAPS -> encodeRiceGaps(messageVector, usableSize)
+        }
+    }
+
+    @Throws(IOException::class)
+    internal fun decode(encoded: ByteArray, encoding: Encoding, usableSize: Int = BloomFilter.USABLE_SIZE): BitSet {
+        return when (encoding) {
+            Encoding.RAW -> decodeRaw(encoded, usableSize)
+            Encoding.RUN_LENGTH -> decodeRuns(encoded, usableSize)
+            Encoding.RICE_GAPS -> decodeRiceGaps(encoded, usableSize)
+        }
+    }
+
+    // Usable bits plus the placeholder bit
+    private fun rawSizeInBytes(usableSize: Int): Int {
+        return (usableSize + 1 + 7) / 8
+    }
+
+    private fun decodeRaw(encoded: ByteArray, usableSize: Int): BitSet {
+        val messageVector = BitSet.valueOf(encoded)
+        messageVector.clear(usableSize, Math.max(usableSize, messageVector.length()))
+        messageVector.set(usableSize)
+        return messageVector
+    }
+
+    private fun encodeRuns(messageVector: BitSet, usableSize: Int): ByteArray {
+        val buffer = Buffer()
+        var position = 0
+        var set = false
+        while (position < usableSize) {
+            var runEnd = if (set) messageVector.nextClearBit(position) else messageVector.nextSetBit(position)
+            if (runEnd == -1 || runEnd > usableSize)
+                runEnd = usableSize
+            writeVarint(buffer, runEnd - position)
+            position = runEnd
+            set = !set
+        }
+        return buffer.readByteArray()
+    }
+
+    @Throws(IOException::class)
+    private fun decodeRuns(encoded: ByteArray, usableSize: Int): BitSet {
+        val buffer = Buffer().write(encoded)
+        val messageVector = BloomFilter.makeEmptyMessageVector(usableSize)
+        var position = 0
+        var set = false
+        while (!buffer.exhausted()) {
+            val runLength = readVarint(buffer)
+            if (runLength < 0 || runLength > usableSize - position)
+                throw IOException("Run of $runLength bits goes past the end of the message vector")
+            if (set)
+                messageVector.set(position, position + runLength)
+            position += runLength
+            set = !set
+        }
+        return messageVector
+    }
+
+    private fun encodeRiceGaps(messageVector: BitSet, usableSize: Int): ByteArray {
+        var count = 0
+        var index = messageVector.nextSetBit(0)
+        while (index != -1 && index < usableSize) {
+            ++count
+            index = messageVector.nextSetBit(index + 1)
+        }
+
+        val parameter = riceParameter(count, usableSize)
+        val writer = BitWriter()
+        writer.write(count.toLong(), 32)
+        writer.write(parameter.toLong(), 8)
+
+        var previous = -1
+        index = messageVector.nextSetBit(0)
+        while (index != -1 && index < usableSize) {
+            val gap = index - previous - 1
+            for (i in 0 until (gap shr parameter))
+                writer.write(1, 1)
+            writer.write(0, 1)
+            writer.write((gap and ((1 shl parameter) - 1)).toLong(), parameter)
+            previous = index
+            index = messageVector.nextSetBit(index + 1)
+        }
+        return writer.toByteArray()
+    }
+
+    @Throws(IOException::class)
+    private fun decodeRiceGaps(encoded: ByteArray, usableSize: Int): BitSet {
+        val reader = BitReader(encoded)
+        val count = reader.read(32).toInt()
+        val parameter = reader.read(8).toInt()
+        if (count < 0 || count > usableSize || parameter > MAX_RICE_PARAMETER)
+            throw IOException("Invalid Rice-coded message vector header")
+
+        val messageVector = BloomFilter.makeEmptyMessageVector(usableSize)
+        var previous = -1
+        for (i in 0 until count) {
+            var quotient = 0
+            while (reader.read(1) == 1L) {
+                ++quotient
+                // Every gap has to fit in the vector, so a longer prefix is garbage
+                if (quotient > usableSize shr parameter)
+                    throw IOException("Rice-coded gap goes past the end of the message vector")
+            }
+            val gap = (quotient shl parameter) or reader.read(parameter).toInt()
+            if (gap >= usableSize - previous - 1)
+                throw IOException("Rice-coded gap goes past the end of the message vector")
+            previous += gap + 1
+            messageVector.set(previous)
+        }
+        return messageVector
+    }
+
+    // Close to optimal for geometrically distributed gaps, which is what a good hash gives
+    private fun riceParameter(count: Int, usableSize: Int): Int {
+        if (count == 0)
+            return 0
+        val averageGap = Math.max(1, (usableSize - count) / count)
+        return Math.min(MAX_RICE_PARAMETER, 31 - Integer.numberOfLeadingZeros(averageGap))
+    }
+
+    private fun writeVarint(buffer: Buffer, value: Int) {
+        var remaining = value
+        while (remaining >= 0x80) {
+            buffer.writeByte((remaining and 0x7F) or 0x80)
+            remaining = remaining ushr 7
+        }
+        buffer.writeByte(remaining)
+    }
+
+    @Throws(IOException::class)
+    private fun readVarint(buffer: Buffer): Int {
+        var value = 0
+        var shift = 0
+        while (shift < 32) {
+            val next = buffer.readByte().toInt()
+            value = value or ((next and 0x7F) shl shift)
+            if ((next and 0x80) == 0)
+                return value
+            shift += 7
+        }
+        throw IOException("Varint is too long")
+    }
+
+    // Most significant bit first
+    private class BitWriter {
+        private val buffer = Buffer()
+        private var current = 0
+        private var bitCount = 0
+
+        fun write(value: Long, bits: Int) {
+            for (bit in bits - 1 downTo 0) {
+                current = (current shl 1) or ((value ushr bit) and 1L).toInt()
+                if (++bitCount == 8) {
+                    buffer.writeByte(current)
+                    current = 0
+                    bitCount = 0
+                }
+            }
+        }
+
+        fun toByteArray(): ByteArray {
+            if (bitCount > 0)
+                buffer.writeByte(current shl (8 - bitCount))
+            current = 0
+            bitCount = 0
+            return buffer.readByteArray()
+        }
+    }
+
+    private class BitReader(private val bytes: ByteArray) {
+        private var position = 0 // in bits
+
+        @Throws(IOException::class)
+        fun read(bits: Int): Long {
+            if (position + bits > bytes.size * 8)
+                throw IOException("Encoded message vector ended early")
+
+            var value = 0L
+            for (i in 0 until bits) {
+                val bit = (bytes[position / 8].toInt() shr (7 - position % 8)) and 1
+                value = (value shl 1) or bit.toLong()
+                ++position
+            }
+            return value
+        }
+    }
+}
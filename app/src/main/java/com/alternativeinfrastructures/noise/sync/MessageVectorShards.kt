@@ -0,0 +1,108 @@
+package com.alternativeinfrastructures.noise.sync
+
+import com.alternativeinfrastructures.noise.storage.BloomFilter
+
+import java.io.IOException
+import java.util.BitSet
+
+import okio.BufferedSink
+import okio.BufferedSource
+import util.hash.MurmurHash3
+
+// Splits message vectors, like the epoch vectors StreamSync exchanges, into fixed shards so that peers only send the
+// parts of their vectors that differ.
+// Each peer sends a digest per shard first. Shards with equal digests are assumed to be equal, so the peer's bits for
+// them are taken from this device's own vector and they can't contribute to the vector difference.
+// size is the whole vector's, FilterParameters.size, which both peers have to share for shards to line up.
+object MessageVectorShards {
+    val SHARD_COUNT = 256
+
+    private val DIGEST_SEED = 0x4e6f6973 // "Nois"
+
+    // What each peer sends for one vector's digests
+    val DIGESTS_SIZE_IN_BYTES = SHARD_COUNT * 8
+
+    // Digests only save anything once the vectors, encoded sizes in bytes, cost more to send than the digests do.
+    // Sparse vectors compress to far less than that. Both peers have to come to the same answer.
+    fun worthSharding(myVectorSize: Int, theirVectorSize: Int): Boolean {
+        return myVectorSize.toLong() + theirVectorSize > 2L * DIGESTS_SIZE_IN_BYTES
+    }
+
+    // in bits
+    @JvmOverloads
+    fun shardSize(size: Int = BloomFilter.SIZE): Int {
+        return size / SHARD_COUNT
+    }
+
+    @JvmOverloads
+    fun digests(messageVector: BitSet, size: Int = BloomFilter.SIZE): LongArray {
+        // The placeholder bit keeps this at size / 8 bytes, but don't rely on it
+        val bytes = messageVector.toByteArray().copyOf(size / 8)
+        val shardSizeInBytes = shardSize(size) / 8
+        val digests = LongArray(SHARD_COUNT)
+        val hash = MurmurHash3.LongPair()
+        for (shard in 0 until SHARD_COUNT) {
+            MurmurHash3.murmurhash3_x64_128(bytes, shard * shardSizeInBytes, shardSizeInBytes, DIGEST_SEED, hash)
+            digests[shard] = hash.val1
+        }
+        return digests
+    }
+
+    fun differingShards(myDigests: LongArray, theirDigests: LongArray): BitSet {
+        val shards = BitSet(SHARD_COUNT)
+        for (shard in 0 until SHARD_COUNT)
+            if (myDigests[shard] != theirDigests[shard])
+                shards.set(shard)
+        return shards
+    }
+
+    // Only the bits in the given shards, which compresses well when few shards differ
+    @JvmOverloads
+    fun restrict(messageVector: BitSet, shards: BitSet, size: Int = BloomFilter.SIZE): BitSet {
+        val restricted = BloomFilter.makeEmptyMessageVector(size - 1)
+        var shard = shards.nextSetBit(0)
+        while (shard != -1) {
+            copyShard(messageVector, restricted, shard, shardSize(size))
+            shard = shards.nextSetBit(shard + 1)
+        }
+        return restricted
+    }
+
+    // Rebuilds the peer's whole vector from the shards they sent and this device's copy of every other shard
+    @JvmOverloads
+    fun merge(theirShards: BitSet, myMessageVector: BitSet, shards: BitSet, size: Int = BloomFilter.SIZE): BitSet {
+        val shardSize = shardSize(size)
+        val merged = myMessageVector.clone() as BitSet
+        var shard = shards.nextSetBit(0)
+        while (shard != -1) {
+            merged.clear(shard * shardSize, (shard + 1) * shardSize)
+            copyShard(theirShards, merged, shard, shardSize)
+            shard = shards.nextSetBit(shard + 1)
+        }
+        merged.set(size - 1)
+        return merged
+    }
+
+    private fun copyShard(from: BitSet, to: BitSet, shard: Int, shardSize: Int) {
+        val shardEnd = (shard + 1) * shardSize
+        var index = from.nextSetBit(shard * shardSize)
+        while (index != -1 && index < shardEnd) {
+            to.set(index)
+            index = from.nextSetBit(index + 1)
+        }
+    }
+
+    @Throws(IOException::class)
+    fun writeDigests(digests: LongArray, sink: BufferedSink) {
+        for (digest in digests)
+            sink.writeLong(digest)
+    }
+
+    @Throws(IOException::class)
+    fun readDigests(source: BufferedSource): LongArray {
+        val digests = LongArray(SHARD_COUNT)
+        for (shard in 0 until SHARD_COUNT)
+            digests[shard] = source.readLong()
+        return digests
+    }
+}
@@ -0,0 +1,75 @@
+package com.alternativeinfrastructures.noise.sync
+
+import com.alternativeinfrastructures.noise.storage.IdentityAnnouncementMessage
+import com.alternativeinfrastructures.noise.storage.MessageStore
+import com.alternativeinfrastructures.noise.storage.MessageTypes
+import com.alternativeinfrastructures.noise.storage.UnknownMessage
+
+import java.util.ArrayList
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import io.reactivex.Flowable
+
+// Decides the order a session sends messages in, and when it stops.
+// Encounters are short and often end before everything is sent, so the most valuable messages go first: the newest,
+// the ones with more proof of work (which their senders paid for) and types other messages depend on. Each session
+// can be given a byte budget and a time budget, after which nothing else is sent. Either way, a connection that
+// drops only loses the least valuable messages.
+// Only the ids and priorities of the candidates are kept while ranking them, and the messages are read again in order.
+class SendScheduler @JvmOverloads constructor(
+        val byteBudget: Long = UNLIMITED,
+        val timeBudgetMs: Long = UNLIMITED,
+        val typeBonuses: Map<UUID, Int> = DEFAULT_TYPE_BONUSES) {
+
+    init {
+        if (byteBudget < 0 || timeBudgetMs < 0)
+            throw IllegalArgumentException("Budgets can't be negative")
+    }
+
+    private class Candidate(val priority: Double, val id: Long)
+
+    // Measured in bits of proof of work: each bit is worth as much as being AGE_PER_ZERO_BIT_MS newer
+    fun priorityOf(message: UnknownMessage, now: Long = System.currentTimeMillis()): Double {
+        val ageMs = Math.max(0L, now - message.date.time)
+        return message.zeroBits + (typeBonuses[message.publicType] ?: 0) - ageMs.toDouble() / AGE_PER_ZERO_BIT_MS
+    }
+
+    // Sends candidates highest priority first until a budget runs out. onBudgetExhausted is called if it does, so
+    // the caller knows the peer wasn't offered everything.
+    @JvmOverloads
+    fun schedule(candidates: Flowable<UnknownMessage>, onBudgetExhausted: (() -> Unit)? = null): Flowable<UnknownMessage> {
+        return Flowable.defer {
+            val started = System.nanoTime()
+            val now = System.currentTimeMillis()
+            var bytesSent = 0L
+
+            candidates.collect<ArrayList<Candidate>>({ ArrayList<Candidate>() }, { ranked, message -> ranked.add(Candidate(priorityOf(message, now), message.id)) })
+                    .flatMapPublisher { ranked ->
+                        // Stable, so equal priorities keep the order they were found in
+                        ranked.sortByDescending { candidate -> candidate.priority }
+                        MessageStore.loadMessagesInOrder(ranked.map { candidate -> candidate.id })
+                    }
+                    .takeWhile { message ->
+                        bytesSent += MESSAGE_SIZE
+                        val elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)
+                        val withinBudget = bytesSent <= byteBudget && elapsedMs <= timeBudgetMs
+                        if (!withinBudget)
+                            onBudgetExhausted?.invoke()
+                        withinBudget
+                    }
+        }
+    }
+
+    companion object {
+        val UNLIMITED = Long.MAX_VALUE
+
+        val AGE_PER_ZERO_BIT_MS = TimeUnit.HOURS.toMillis(6)
+
+        // Identities are needed to read anything else their owners send
+        val DEFAULT_TYPE_BONUSES: Map<UUID, Int> = mapOf(MessageTypes[IdentityAnnouncementMessage::class.java]!! to 4)
+
+        // Each message is sent with a byte for its type, see StreamSync.sendMessagesAsync
+        private val MESSAGE_SIZE = 1L + UnknownMessage.SERIALIZED_SIZE
+    }
+}
@@ -0,0 +1,108 @@
+package com.alternativeinfrastructures.noise.sync
+
+import java.io.IOException
+import java.util.Arrays
+import java.util.Collections
+import java.util.PriorityQueue
+
+import okio.BufferedSink
+import okio.BufferedSource
+
+// Bottom-k min-hash sketch of a set of message ids, used to guess how many ids two peers don't have in common before
+// sizing an InvertibleBloomLookupTable.
+// The estimate is computed identically from either side, so both peers pick the same table size without another round.
+// Small differences between large stores tend to be underestimated; reconciliation makes up for that by retrying with
+// larger tables.
+class SetDifferenceSketch private constructor(val count: Long, private val minimums: LongArray) {
+
+    fun estimateDifference(other: SetDifferenceSketch): Long {
+        // Every id fits in both sketches, so the difference can be counted exactly
+        if (count <= SKETCH_SIZE && other.count <= SKETCH_SIZE)
+            return (countUnion(other) - countShared(other, minimums.size + other.minimums.size)).toLong()
+
+        // Jaccard similarity of the two sets is close to the fraction of the union's smallest hashes that are in both
+        val unionSize = Math.min(SKETCH_SIZE, countUnion(other))
+        if (unionSize == 0)
+            return 0
+        val similarity = countShared(other, unionSize).toDouble() / unionSize
+        val difference = (count + other.count) * (1 - similarity) / (1 + similarity)
+        return Math.ceil(difference).toLong()
+    }
+
+    @Throws(IOException::class)
+    fun writeTo(sink: BufferedSink) {
+        sink.writeLong(count)
+        sink.writeInt(minimums.size)
+        for (minimum in minimums)
+            sink.writeLong(minimum)
+    }
+
+    // Of the smallest `limit` hashes in either sketch, how many are in both
+    private fun countShared(other: SetDifferenceSketch, limit: Int): Int {
+        var shared = 0
+        var seen = 0
+        var mine = 0
+        var theirs = 0
+        while (seen < limit && mine < minimums.size && theirs < other.minimums.size) {
+            val comparison = java.lang.Long.compare(minimums[mine], other.minimums[theirs])
+            if (comparison == 0) {
+                ++shared
+                ++mine
+                ++theirs
+            } else if (comparison < 0) {
+                ++mine
+            } else {
+                ++theirs
+            }
+            ++seen
+        }
+        return shared
+    }
+
+    private fun countUnion(other: SetDifferenceSketch): Int {
+        return minimums.size + other.minimums.size - countShared(other, minimums.size + other.minimums.size)
+    }
+
+    companion object {
+        // 1 KiB on the wire
+        val SKETCH_SIZE = 128
+
+        private val SKETCH_SEED = 0x2545f4914f6cdd1dL
+
+        fun fromIds(ids: LongArray): SetDifferenceSketch {
+            // Max-heap of the smallest hashes seen so far
+            val smallest = PriorityQueue<Long>(SKETCH_SIZE, Collections.reverseOrder())
+            for (id in ids) {
+                val hash = InvertibleBloomLookupTable.mix(id xor SKETCH_SEED)
+                if (smallest.size < SKETCH_SIZE) {
+                    smallest.add(hash)
+                } else if (hash < smallest.peek()) {
+                    smallest.poll()
+                    smallest.add(hash)
+                }
+            }
+
+            val minimums = LongArray(smallest.size)
+            for ((index, hash) in smallest.withIndex())
+                minimums[index] = hash
+            Arrays.sort(minimums)
+            return SetDifferenceSketch(ids.size.toLong(), minimums)
+        }
+
+        @Throws(IOException::class)
+        fun readFrom(source: BufferedSource): SetDifferenceSketch {
+            val count = source.readLong()
+            val size = source.readInt()
+            if (count < 0 || size < 0 || size > SKETCH_SIZE || size > count)
+                throw IOException("Invalid set sketch of $size hashes for $count ids")
+
+            val minimums = LongArray(size)
+            for (index in 0 until size) {
+                minimums[index] = source.readLong()
+                if (index > 0 && minimums[index] <= minimums[index - 1])
+                    throw IOException("Set sketch hashes are out of order")
+            }
+            return SetDifferenceSketch(count, minimums)
+        }
+    }
+}
@@ -2,23 +2,38 @@ package com.alternativeinfrastructures.noise.sync
 
 import android.util.Log
 
+import com.alternativeinfrastructures.noise.models.PeerSyncRecord
 import com.alternativeinfrastructures.noise.storage.BloomFilter
+import com.alternativeinfrastructures.noise.storage.BloomIndexer
+import com.alternativeinfrastructures.noise.storage.BloomSummary
+import com.alternativeinfrastructures.noise.storage.EpochVectors
+import com.alternativeinfrastructures.noise.storage.FilterParameters
+import com.alternativeinfrastructures.noise.storage.MessageSetSummary
+import com.alternativeinfrastructures.noise.storage.MessageStore
+import com.alternativeinfrastructures.noise.storage.MessageVector
 import com.alternativeinfrastructures.noise.storage.UnknownMessage
+import com.raizlabs.android.dbflow.data.Blob
 
 import java.io.IOException
 import java.io.InputStream
 import java.io.OutputStream
 import java.nio.charset.Charset
+import java.security.SecureRandom
+import java.util.ArrayList
 import java.util.BitSet
+import java.util.HashMap
+import java.util.SortedMap
+import java.util.concurrent.Callable
 import java.util.concurrent.ExecutionException
 import java.util.concurrent.ExecutorService
 import java.util.concurrent.Executors
 import java.util.concurrent.Future
 
-import io.reactivex.BackpressureStrategy
+import io.reactivex.Emitter
 import io.reactivex.Flowable
-import io.reactivex.FlowableEmitter
+import io.reactivex.functions.BiFunction
 import io.reactivex.schedulers.Schedulers
+import okio.Buffer
 import okio.BufferedSink
 import okio.BufferedSource
 import okio.Okio
@@ -26,10 +41,26 @@ import okio.Okio
 object StreamSync {
     val TAG = "StreamSync"
 
-    private val PROTOCOL_NAME = "Noise0"
+    private val PROTOCOL_NAME = "Noise10"
     private val DEFAULT_CHARSET = Charset.forName("US-ASCII")
 
-    fun bidirectionalSync(inputStream: InputStream, outputStream: OutputStream) {
+    var ingestPipeline = IngestPipeline()
+
+    // Orders what each session sends and how much it may send
+    var sendScheduler = SendScheduler()
+
+    // Peers only reconcile if both of them have this enabled
+    var reconciliationEnabled = true
+
+    // What to summarize this device's messages with when reconciliation doesn't work out. A session only uses a cuckoo
+    // filter if both peers prefer it; otherwise it uses message vectors.
+    var preferredSummary = MessageSetSummary.Kind.BLOOM
+
+    private val random = SecureRandom()
+
+    // peerAddress identifies the peer across syncs. Without it, nothing is remembered about the peer.
+    @JvmOverloads
+    fun bidirectionalSync(inputStream: InputStream, outputStream: OutputStream, peerAddress: String? = null) {
         Log.d(TAG, "Starting sync")
 
         // TODO: Set timeouts
@@ -38,6 +69,8 @@ object StreamSync {
         val sink = Okio.buffer(Okio.sink(outputStream))
         val ioExecutors = Executors.newFixedThreadPool(2) // Separate threads for send and receive
 
+        // Everything in this sync uses the same vector, even if MessageVector re-indexes meanwhile
+        val myVectorState = MessageVector.state()
         val handshakeFutures = handshakeAsync(source, sink, ioExecutors)
 
         try {
@@ -49,42 +82,298 @@ object StreamSync {
 
         Log.d(TAG, "Connected to a peer")
 
-        val myMessageVector = BloomFilter.messageVectorAsync.blockingGet()
-        val messageVectorFutures = exchangeMessageVectorsAsync(myMessageVector, source, sink, ioExecutors)
+        val peerRecord = if (peerAddress != null) PeerSyncRecord.forPeer(peerAddress) else null
+        // Anything stored from here on is offered again next time
+        val syncWatermark = MessageStore.latestStoredAt()
+
+        val plan = try {
+            planSync(peerRecord, source, sink, ioExecutors)
+        } finally {
+            ioExecutors.shutdown()
+        } ?: return
+
+        // Messages the peer sends are known to it even if they aren't stored here
+        val myParameters = myVectorState.parameters
+        val receivedVector = BloomFilter.makeEmptyMessageVector(myParameters.usableSize)
+        // Indices come from the digest validation computes, so received messages aren't hashed again for this
+        val receivedIndexer = BloomIndexer(myParameters)
+
+        // Start receiving first so that both peers can't block each other by only writing
+        // Parsing happens on its own thread and is throttled by how quickly the ingest pipeline can verify and store
+        val theirMessages = receiveMessagesAsync(source).subscribeOn(Schedulers.io())
+        val ingestResult = ingestPipeline.ingest(theirMessages) { validated ->
+            for (hash in receivedIndexer.indicesOf(BloomFilter.seedsFromDigest(validated.validation.hash!!)))
+                receivedVector.set(hash)
+        }.toFuture()
+
+        // Messages the budget left out are offered again next time
+        var sentEverything = false
+        var exhaustedBudget = false
+        val forwardedIds = ArrayList<Long>()
+        val scheduledMessages = sendScheduler.schedule(plan.messages) { exhaustedBudget = true }
+                .doOnNext { message -> forwardedIds.add(message.id) }
+        sendMessagesAsync(scheduledMessages.doOnComplete { sentEverything = !exhaustedBudget }, sink)
 
-        val theirMessageVector: BitSet?
+        // Wait until both complete so that we don't prematurely close the connection
+        var receivedEverything = false
         try {
-            theirMessageVector = messageVectorFutures.get()
+            val stats = ingestResult.get()
+            receivedEverything = stats.failed == 0
+            Log.d(TAG, "Ingested received messages: $stats")
         } catch (e: Exception) {
-            Log.e(TAG, "Failed to exchange message vectors", e)
-            return
+            Log.e(TAG, "Error receiving messages", e)
+        }
+
+        try {
+            MessageStore.markForwardedAsync(forwardedIds).blockingGet()
+        } catch (e: Exception) {
+            Log.e(TAG, "Couldn't record which messages were forwarded", e)
         }
 
-        // TODO: Include a subset of the message vector in the broadcast and verify that theirMessageVector matches
+        if (peerAddress != null && sentEverything && receivedEverything) {
+            // However this sync went, the peer was offered everything stored here that it didn't already have
+            val peerMessageVector = myVectorState.vector.clone() as BitSet
+            peerMessageVector.or(receivedVector)
+            recordSync(peerAddress, peerRecord, plan.nextSessionToken, syncWatermark, peerMessageVector, myParameters)
+        }
 
-        Log.d(TAG, "Exchanged message vectors")
-        ioExecutors.shutdown()
+        Log.d(TAG, "Sync completed")
+    }
 
-        val vectorDifference = myMessageVector.clone() as BitSet
-        vectorDifference.andNot(theirMessageVector)
+    internal class ResumeOffer(val sessionToken: Long, val nonce: Long)
 
-        // TODO: Is this I/O as parallel as you think it is? Look into explicitly using separate threads for these
-        val myMessages = BloomFilter.getMatchingMessages(vectorDifference)
-        sendMessagesAsync(myMessages, sink)
+    private class SyncPlan(val messages: Flowable<UnknownMessage>, val nextSessionToken: Long)
 
-        val theirMessages = receiveMessagesAsync(source)
-        theirMessages.subscribe(
-                { message: UnknownMessage -> message.saveAsync().subscribe() },
-                { e: Throwable -> Log.e(TAG, "Error receiving messages", e) })
+    // If both peers still hold the token from their last sync with each other, neither has to reconcile: each only sends
+    // what it stored since then. Otherwise they fall back to findMessagesToSend. Returns null if the sync has to be abandoned.
+    private fun planSync(
+            peerRecord: PeerSyncRecord?, source: BufferedSource, sink: BufferedSink, ioExecutors: ExecutorService): SyncPlan? {
+        val myOffer = ResumeOffer(peerRecord?.sessionToken ?: 0, random.nextLong())
+        val theirOffer: ResumeOffer
+        try {
+            theirOffer = exchangeResumeOffersAsync(myOffer, source, sink, ioExecutors).get()!!
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to exchange resume offers", e)
+            return null
+        }
 
-        // Wait until both complete so that we don't prematurely close the connection
-        Log.d(TAG, "Sync completed")
+        val nextSessionToken = combineNonces(myOffer.nonce, theirOffer.nonce)
+        if (peerRecord != null && myOffer.sessionToken != 0L && myOffer.sessionToken == theirOffer.sessionToken) {
+            Log.d(TAG, "Resuming from the last sync with this peer")
+            val peerParameters = peerRecord.filterParameters
+            val peerMessageVector = decodeMessageVector(peerRecord.peerMessageVector, peerParameters)
+            var messages = MessageStore.loadMessagesStoredSince(peerRecord.sentWatermark)
+            if (peerMessageVector != null) {
+                val peerSummary = BloomSummary(peerMessageVector, peerParameters)
+                messages = messages.filter { message -> !peerSummary.mightContain(message.id, message.bloomSeeds.blob) }
+            }
+            return SyncPlan(messages, nextSessionToken)
+        }
+
+        return findMessagesToSend(source, sink, ioExecutors, nextSessionToken)
     }
 
+    private fun recordSync(
+            peerAddress: String, peerRecord: PeerSyncRecord?, sessionToken: Long, syncWatermark: Long,
+            peerMessageVector: BitSet, parameters: FilterParameters) {
+        val record = peerRecord ?: PeerSyncRecord()
+        record.peerAddress = peerAddress
+        record.lastSyncedAt = System.currentTimeMillis()
+        record.sessionToken = sessionToken
+        record.sentWatermark = syncWatermark
+        record.peerMessageVector = Blob(encodeMessageVector(peerMessageVector, parameters))
+        record.filterParameters = parameters
+        record.save().blockingGet()
+    }
+
+    // Both peers get the same token out of this. It is never 0, which means there is no token.
+    private fun combineNonces(myNonce: Long, theirNonce: Long): Long {
+        val token = InvertibleBloomLookupTable.mix(myNonce xor theirNonce)
+        return if (token != 0L) token else 1L
+    }
+
+    private fun encodeMessageVector(messageVector: BitSet, parameters: FilterParameters): ByteArray {
+        val buffer = Buffer()
+        MessageVectorCodec.write(messageVector, buffer, parameters.usableSize)
+        return buffer.readByteArray()
+    }
+
+    private fun decodeMessageVector(encoded: Blob?, parameters: FilterParameters): BitSet? {
+        val bytes = encoded?.blob
+        if (bytes == null || bytes.isEmpty())
+            return null
+        try {
+            return MessageVectorCodec.read(Buffer().write(bytes), parameters.usableSize)
+        } catch (e: IOException) {
+            Log.e(TAG, "Ignoring an unreadable peer message vector", e)
+            return null
+        }
+    }
+
+    // Reconciles first if both peers allow it, and only exchanges summaries if that doesn't work out. Peers that both
+    // prefer cuckoo filters exchange those, and everyone else exchanges the epoch vectors they both retain.
+    // Returns null if the sync has to be abandoned.
+    private fun findMessagesToSend(
+            source: BufferedSource, sink: BufferedSink, ioExecutors: ExecutorService, nextSessionToken: Long): SyncPlan? {
+        try {
+            val missingIds = reconcile(MessageStore.loadIds(), source, sink, ioExecutors)
+            if (missingIds != null) {
+                Log.d(TAG, "Reconciled with the peer, which is missing " + missingIds.size + " messages")
+                return SyncPlan(MessageStore.loadMessages(missingIds), nextSessionToken)
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to reconcile", e)
+            return null
+        }
+
+        try {
+            val messages = findMessagesByCuckooFilter(source, sink, ioExecutors)
+            if (messages != null)
+                return SyncPlan(messages, nextSessionToken)
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to exchange cuckoo filters", e)
+            return null
+        }
+
+        // TODO: Include a subset of the epoch vectors in the broadcast and verify that the peer's vectors match
+        try {
+            return SyncPlan(findMessagesByEpoch(source, sink, ioExecutors), nextSessionToken)
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to exchange epoch vectors", e)
+            return null
+        }
+    }
+
+    // Returns the messages missing from the peer's cuckoo filter, or null if either peer doesn't want to use one or
+    // has too many messages for one
+    @Throws(Exception::class)
+    private fun findMessagesByCuckooFilter(
+            source: BufferedSource, sink: BufferedSink, ioExecutors: ExecutorService): Flowable<UnknownMessage>? {
+        val theirPreference = exchangeSummaryPreferencesAsync(preferredSummary, source, sink, ioExecutors).get()
+        if (preferredSummary != MessageSetSummary.Kind.CUCKOO || theirPreference != MessageSetSummary.Kind.CUCKOO)
+            return null
+
+        val myFilter = CuckooFilter.fromIds(MessageStore.loadIds())
+        val theirFilter = exchangeCuckooFiltersAsync(myFilter, source, sink, ioExecutors).get()
+        if (myFilter == null || theirFilter == null)
+            return null
+
+        Log.d(TAG, "Exchanged cuckoo filters of " + theirFilter.count + " messages")
+        return MessageStore.loadMessagesMissingFrom(theirFilter)
+    }
+
+    // Only messages dated in epochs both peers retain are offered, so old messages don't cost anything to sync.
+    @Throws(Exception::class)
+    private fun findMessagesByEpoch(
+            source: BufferedSource, sink: BufferedSink, ioExecutors: ExecutorService): Flowable<UnknownMessage> {
+        val myEpochVectors = EpochVectors.get()
+        val mySummary = EpochSummary.fromVectors(EpochVectors.EPOCH_LENGTH_MS, myEpochVectors)
+        val theirSummary = exchangeEpochSummariesAsync(mySummary, source, sink, ioExecutors).get()!!
+        // Epochs only change along with PROTOCOL_NAME, so a peer that got through the handshake uses the same ones
+        if (theirSummary.epochLength != mySummary.epochLength)
+            throw IOException("Peer uses epochs of " + theirSummary.epochLength + " ms")
+
+        return exchangeDifferingEpochs(myEpochVectors, mySummary, theirSummary, source, sink, ioExecutors)
+    }
+
+    // Large epoch vectors that both peers sized the same are narrowed down to the shards that differ (see
+    // MessageVectorShards), and only those shards are sent. Shards don't line up otherwise, and their digests cost more
+    // than small vectors do, so the other epochs' vectors are sent whole, and each peer sends whatever isn't in the
+    // other's vector by the other's parameters.
+    @Throws(Exception::class)
+    internal fun exchangeDifferingEpochs(
+            myEpochVectors: SortedMap<Long, EpochVectors.EpochVector>, mySummary: EpochSummary, theirSummary: EpochSummary,
+            source: BufferedSource, sink: BufferedSink, ioExecutors: ExecutorService): Flowable<UnknownMessage> {
+        val differingEpochs = mySummary.differingEpochs(theirSummary)
+        Log.d(TAG, "Exchanged epoch summaries, " + differingEpochs.size + " epochs differ")
+        if (differingEpochs.isEmpty())
+            return Flowable.empty()
+
+        val myVectors = differingEpochs.map { epoch -> myEpochVectors[epoch]!! }
+        val theirParameters = differingEpochs.map { epoch -> theirSummary.parametersOf(epoch) }
+        // Both peers come to the same epochs and shards, so each knows which bits the other sends
+        val sharded = differingEpochs.indices.filter { index ->
+            val epoch = differingEpochs[index]
+            myVectors[index].parameters == theirParameters[index] &&
+                    MessageVectorShards.worthSharding(mySummary.vectorSizeOf(epoch), theirSummary.vectorSizeOf(epoch))
+        }
+        val myDigests = sharded.map { index -> MessageVectorShards.digests(myVectors[index].vector, myVectors[index].parameters.size) }
+        // Both peers know when neither has digests to send
+        val theirDigests = if (sharded.isEmpty()) emptyList() else exchangeShardDigestsAsync(myDigests, source, sink, ioExecutors).get()!!
+        val differingShards = HashMap<Int, BitSet>()
+        for ((shardedIndex, index) in sharded.withIndex())
+            differingShards[index] = MessageVectorShards.differingShards(myDigests[shardedIndex], theirDigests[shardedIndex])
+        Log.d(TAG, "Exchanged shard digests, " + differingShards.values.sumBy { shards -> shards.cardinality() } + " shards differ")
+
+        val mySent = myVectors.indices.map { index ->
+            val shards = differingShards[index]
+            if (shards != null)
+                MessageVectorShards.restrict(myVectors[index].vector, shards, myVectors[index].parameters.size)
+            else
+                myVectors[index].vector
+        }
+        val theirSent = exchangeEpochVectorsAsync(
+                mySent, myVectors.map { epochVector -> epochVector.parameters }, theirParameters, source, sink, ioExecutors).get()!!
+        return Flowable.range(0, differingEpochs.size).concatMap { index ->
+            val epoch = differingEpochs[index]
+            val myVector = myVectors[index]
+            val shards = differingShards[index]
+            if (shards == null) {
+                EpochVectors.getMessagesMissingFrom(epoch, BloomSummary(theirSent[index], theirParameters[index]))
+            } else {
+                // Shards with equal digests are copied from this device's vector, so they cancel out here
+                val theirVector = MessageVectorShards.merge(theirSent[index], myVector.vector, shards, myVector.parameters.size)
+                val vectorDifference = myVector.vector.clone() as BitSet
+                vectorDifference.andNot(theirVector)
+                EpochVectors.getMatchingMessages(epoch, vectorDifference, myVector.parameters)
+            }
+        }
+    }
+
+    // Set reconciliation with invertible bloom lookup tables.
+    // Both peers estimate how many ids they don't have in common and exchange tables sized for that, growing them until
+    // both can decode the difference. Returns the ids the peer is missing, or null if either peer opted out or the
+    // difference is too large for a table to be cheaper than message vectors.
+    @Throws(Exception::class)
+    internal fun reconcile(myIds: LongArray, source: BufferedSource, sink: BufferedSink, ioExecutors: ExecutorService): List<Long>? {
+        val mySketch = if (reconciliationEnabled) SetDifferenceSketch.fromIds(myIds) else null
+        val theirSketch = exchangeSketchesAsync(mySketch, source, sink, ioExecutors).get()
+        if (mySketch == null || theirSketch == null)
+            return null
+
+        var cells = InvertibleBloomLookupTable.cellsFor(mySketch.estimateDifference(theirSketch))
+        while (cells != null) {
+            val myTable = InvertibleBloomLookupTable.fromIds(myIds, cells)
+            val theirTable = exchangeDifferenceTablesAsync(myTable, source, sink, ioExecutors).get()!!
+            myTable.subtract(theirTable)
+            val result = myTable.decode()
+
+            // Both sides decode the same difference, but only trust it if the peer agrees
+            val theySucceeded = exchangeReconciliationResultsAsync(result.success, source, sink, ioExecutors).get()!!
+            if (result.success && theySucceeded) {
+                Log.d(TAG, "Decoded a difference of " + (result.onlyHere.size + result.onlyThere.size) + " ids from $cells cells")
+                return result.onlyHere
+            }
+
+            Log.d(TAG, "Couldn't decode the difference from $cells cells")
+            cells = if (cells * 2 <= InvertibleBloomLookupTable.MAX_CELLS) cells * 2 else null
+        }
+        return null
+    }
+
+    // 1 was a whole message vector, which epoch vectors replaced
     private enum class Messages private constructor(internal val value: Byte) {
-        MESSAGE_VECTOR(1.toByte()),
         MESSAGE(2.toByte()),
-        END(3.toByte())
+        END(3.toByte()),
+        SET_SKETCH(4.toByte()),
+        DIFFERENCE_TABLE(5.toByte()),
+        RECONCILIATION_RESULT(6.toByte()),
+        SHARD_DIGESTS(7.toByte()),
+        RESUME_OFFER(8.toByte()),
+        EPOCH_SUMMARY(9.toByte()),
+        EPOCH_VECTORS(10.toByte()),
+        SUMMARY_PREFERENCE(11.toByte()),
+        CUCKOO_FILTER(12.toByte())
     }
 
     internal class IOFutures<T> {
@@ -103,6 +392,7 @@ object StreamSync {
         }
     }
 
+    // Each epoch's vector comes with its own parameters (see EpochSummary), so only the protocol has to match here
     internal fun handshakeAsync(source: BufferedSource, sink: BufferedSink, ioExecutors: ExecutorService): IOFutures<String> {
         if (PROTOCOL_NAME.length > java.lang.Byte.MAX_VALUE)
             Log.wtf(TAG, "Protocol name is too long")
@@ -127,25 +417,220 @@ object StreamSync {
         return futures
     }
 
-    internal fun exchangeMessageVectorsAsync(
-            myMessageVector: BitSet, source: BufferedSource, sink: BufferedSink, ioExecutors: ExecutorService): IOFutures<BitSet> {
-        val futures = IOFutures<BitSet>()
+    // One set of digests per epoch, for the same epochs in the same order on both sides
+    internal fun exchangeShardDigestsAsync(
+            myDigests: List<LongArray>, source: BufferedSource, sink: BufferedSink,
+            ioExecutors: ExecutorService): IOFutures<List<LongArray>> {
+        val futures = IOFutures<List<LongArray>>()
+
+        futures.sender = ioExecutors.submit<Void> {
+            sink.writeByte(Messages.SHARD_DIGESTS.value.toInt())
+            sink.writeInt(myDigests.size)
+            for (digests in myDigests)
+                MessageVectorShards.writeDigests(digests, sink)
+            sink.flush()
+            null
+        }
+
+        futures.receiver = ioExecutors.submit<List<LongArray>> {
+            val messageType = source.readByte()
+            if (messageType != Messages.SHARD_DIGESTS.value)
+                throw IOException("Expected shard digests but got $messageType")
+
+            val count = source.readInt()
+            if (count != myDigests.size)
+                throw IOException("Expected shard digests for " + myDigests.size + " epochs but got $count")
+            myDigests.map { MessageVectorShards.readDigests(source) }
+        }
+
+        return futures
+    }
+
+    internal fun exchangeEpochSummariesAsync(
+            mySummary: EpochSummary, source: BufferedSource, sink: BufferedSink,
+            ioExecutors: ExecutorService): IOFutures<EpochSummary> {
+        val futures = IOFutures<EpochSummary>()
+
+        futures.sender = ioExecutors.submit<Void> {
+            sink.writeByte(Messages.EPOCH_SUMMARY.value.toInt())
+            mySummary.writeTo(sink)
+            sink.flush()
+            null
+        }
+
+        futures.receiver = ioExecutors.submit<EpochSummary> {
+            val messageType = source.readByte()
+            if (messageType != Messages.EPOCH_SUMMARY.value)
+                throw IOException("Expected an epoch summary but got $messageType")
+
+            EpochSummary.readFrom(source)
+        }
+
+        return futures
+    }
+
+    // Both peers send the vectors for the same epochs in the same order, each built with its own parameters
+    internal fun exchangeEpochVectorsAsync(
+            myVectors: List<BitSet>, myParameters: List<FilterParameters>, theirParameters: List<FilterParameters>,
+            source: BufferedSource, sink: BufferedSink, ioExecutors: ExecutorService): IOFutures<List<BitSet>> {
+        val futures = IOFutures<List<BitSet>>()
+
+        futures.sender = ioExecutors.submit<Void> {
+            sink.writeByte(Messages.EPOCH_VECTORS.value.toInt())
+            for ((index, epochVector) in myVectors.withIndex())
+                MessageVectorCodec.write(epochVector, sink, myParameters[index].usableSize)
+            sink.flush()
+            null
+        }
+
+        futures.receiver = ioExecutors.submit<List<BitSet>> {
+            val messageType = source.readByte()
+            if (messageType != Messages.EPOCH_VECTORS.value)
+                throw IOException("Expected epoch vectors but got $messageType")
+
+            theirParameters.map { parameters -> MessageVectorCodec.read(source, parameters.usableSize) }
+        }
+
+        return futures
+    }
+
+    internal fun exchangeResumeOffersAsync(
+            myOffer: ResumeOffer, source: BufferedSource, sink: BufferedSink, ioExecutors: ExecutorService): IOFutures<ResumeOffer> {
+        val futures = IOFutures<ResumeOffer>()
 
         futures.sender = ioExecutors.submit<Void> {
-            sink.writeByte(Messages.MESSAGE_VECTOR.value.toInt())
-            sink.write(myMessageVector.toByteArray())
+            sink.writeByte(Messages.RESUME_OFFER.value.toInt())
+            sink.writeLong(myOffer.sessionToken)
+            sink.writeLong(myOffer.nonce)
             sink.flush()
             null
         }
 
-        futures.receiver = ioExecutors.submit<BitSet> {
+        futures.receiver = ioExecutors.submit<ResumeOffer> {
             val messageType = source.readByte()
-            // TODO: Make an exception type for protocol errors
-            if (messageType != Messages.MESSAGE_VECTOR.value)
-                throw IOException("Expected a message vector but got $messageType")
+            if (messageType != Messages.RESUME_OFFER.value)
+                throw IOException("Expected a resume offer but got $messageType")
 
-            val theirMessageVectorByteArray = source.readByteArray(BloomFilter.SIZE_IN_BYTES.toLong())
-            BitSet.valueOf(theirMessageVectorByteArray)
+            ResumeOffer(source.readLong(), source.readLong())
+        }
+
+        return futures
+    }
+
+    // Receives null if the peer prefers a kind of summary this device doesn't know
+    internal fun exchangeSummaryPreferencesAsync(
+            myPreference: MessageSetSummary.Kind, source: BufferedSource, sink: BufferedSink,
+            ioExecutors: ExecutorService): IOFutures<MessageSetSummary.Kind?> {
+        val futures = IOFutures<MessageSetSummary.Kind?>()
+
+        futures.sender = ioExecutors.submit<Void> {
+            sink.writeByte(Messages.SUMMARY_PREFERENCE.value.toInt())
+            sink.writeByte(myPreference.value.toInt())
+            sink.flush()
+            null
+        }
+
+        futures.receiver = ioExecutors.submit<MessageSetSummary.Kind?> {
+            val messageType = source.readByte()
+            if (messageType != Messages.SUMMARY_PREFERENCE.value)
+                throw IOException("Expected a summary preference but got $messageType")
+
+            MessageSetSummary.Kind.fromValue(source.readByte())
+        }
+
+        return futures
+    }
+
+    // Sends null if this device's messages don't fit in a filter, and receives null if the peer's don't
+    internal fun exchangeCuckooFiltersAsync(
+            myFilter: CuckooFilter?, source: BufferedSource, sink: BufferedSink,
+            ioExecutors: ExecutorService): IOFutures<CuckooFilter?> {
+        val futures = IOFutures<CuckooFilter?>()
+
+        futures.sender = ioExecutors.submit<Void> {
+            sink.writeByte(Messages.CUCKOO_FILTER.value.toInt())
+            sink.writeByte(if (myFilter != null) 1 else 0)
+            myFilter?.writeTo(sink)
+            sink.flush()
+            null
+        }
+
+        futures.receiver = ioExecutors.submit<CuckooFilter?> {
+            val messageType = source.readByte()
+            if (messageType != Messages.CUCKOO_FILTER.value)
+                throw IOException("Expected a cuckoo filter but got $messageType")
+
+            if (source.readByte().toInt() != 0) CuckooFilter.readFrom(source) else null
+        }
+
+        return futures
+    }
+
+    // Sends null to opt out of reconciliation, and receives null if the peer opted out
+    internal fun exchangeSketchesAsync(
+            mySketch: SetDifferenceSketch?, source: BufferedSource, sink: BufferedSink,
+            ioExecutors: ExecutorService): IOFutures<SetDifferenceSketch?> {
+        val futures = IOFutures<SetDifferenceSketch?>()
+
+        futures.sender = ioExecutors.submit<Void> {
+            sink.writeByte(Messages.SET_SKETCH.value.toInt())
+            sink.writeByte(if (mySketch != null) 1 else 0)
+            mySketch?.writeTo(sink)
+            sink.flush()
+            null
+        }
+
+        futures.receiver = ioExecutors.submit<SetDifferenceSketch?> {
+            val messageType = source.readByte()
+            if (messageType != Messages.SET_SKETCH.value)
+                throw IOException("Expected a set sketch but got $messageType")
+
+            if (source.readByte().toInt() != 0) SetDifferenceSketch.readFrom(source) else null
+        }
+
+        return futures
+    }
+
+    internal fun exchangeDifferenceTablesAsync(
+            myTable: InvertibleBloomLookupTable, source: BufferedSource, sink: BufferedSink,
+            ioExecutors: ExecutorService): IOFutures<InvertibleBloomLookupTable> {
+        val futures = IOFutures<InvertibleBloomLookupTable>()
+
+        futures.sender = ioExecutors.submit<Void> {
+            sink.writeByte(Messages.DIFFERENCE_TABLE.value.toInt())
+            myTable.writeTo(sink)
+            sink.flush()
+            null
+        }
+
+        futures.receiver = ioExecutors.submit<InvertibleBloomLookupTable> {
+            val messageType = source.readByte()
+            if (messageType != Messages.DIFFERENCE_TABLE.value)
+                throw IOException("Expected a difference table but got $messageType")
+
+            InvertibleBloomLookupTable.readFrom(source, myTable.cells)
+        }
+
+        return futures
+    }
+
+    internal fun exchangeReconciliationResultsAsync(
+            mySuccess: Boolean, source: BufferedSource, sink: BufferedSink, ioExecutors: ExecutorService): IOFutures<Boolean> {
+        val futures = IOFutures<Boolean>()
+
+        futures.sender = ioExecutors.submit<Void> {
+            sink.writeByte(Messages.RECONCILIATION_RESULT.value.toInt())
+            sink.writeByte(if (mySuccess) 1 else 0)
+            sink.flush()
+            null
+        }
+
+        futures.receiver = ioExecutors.submit<Boolean> {
+            val messageType = source.readByte()
+            if (messageType != Messages.RECONCILIATION_RESULT.value)
+                throw IOException("Expected a reconciliation result but got $messageType")
+
+            source.readByte().toInt() != 0
         }
 
         return futures
@@ -164,23 +649,20 @@ object StreamSync {
         })
     }
 
+    // Reads only as many messages as downstream has requested so that a fast sender can't fill up memory
     internal fun receiveMessagesAsync(source: BufferedSource): Flowable<UnknownMessage> {
         Log.d(TAG, "Receiving messages")
-        return Flowable.create({ messageEmitter: FlowableEmitter<UnknownMessage> ->
-            var messageCount = 0
-            while (true) {
-                val messageType = source.readByte()
-                if (messageType == Messages.END.value)
-                    break
-                else if (messageType != Messages.MESSAGE.value)
-                    messageEmitter.onError(IOException("Expected a message but got $messageType"))
-
+        return Flowable.generate<UnknownMessage, Int>(Callable { 0 }, BiFunction<Int, Emitter<UnknownMessage>, Int> { messageCount, messageEmitter ->
+            val messageType = source.readByte()
+            if (messageType == Messages.END.value) {
+                Log.d(TAG, "Received $messageCount messages")
+                messageEmitter.onComplete()
+            } else if (messageType != Messages.MESSAGE.value) {
+                messageEmitter.onError(IOException("Expected a message but got $messageType"))
+            } else {
                 messageEmitter.onNext(UnknownMessage.fromSource(source))
-                ++messageCount
             }
-
-            messageEmitter.onComplete()
-            Log.d(TAG, "Received $messageCount messages")
-        }, BackpressureStrategy.BUFFER)
+            messageCount + 1
+        })
     }
 }
@@ -193,7 +193,7 @@ class BluetoothSyncService : Service() {
                     macAddress = socket!!.remoteDevice.address
                     if (!openConnections!!.containsKey(macAddress)) {
                         openConnections!![macAddress!!] = true
-                        StreamSync.bidirectionalSync(socket.inputStream, socket.outputStream)
+                        StreamSync.bidirectionalSync(socket.inputStream, socket.outputStream, macAddress)
                     }
                     socket.close()
                 } catch (connectException: IOException) {
@@ -238,7 +238,7 @@ class BluetoothSyncService : Service() {
                 Log.d(TAG, "Bluetooth Classic client is attempting to connect to a server")
                 socket!!.connect()
 
-                StreamSync.bidirectionalSync(socket!!.inputStream, socket!!.outputStream)
+                StreamSync.bidirectionalSync(socket!!.inputStream, socket!!.outputStream, macAddress)
                 socket!!.close()
             } catch (connectException: IOException) {
                 Log.e(TAG, "Failed to start a Bluetooth Classic connection as a client", connectException)
@@ -0,0 +1,156 @@
+package util.hash;
+
+/**
+ *  SHA-256 for hashing the same message over and over while only a few bytes near its end change.
+ *  <p>
+ *  Every 64-byte block that comes entirely before the mutable region is compressed once in the constructor.
+ *  Each call to {@link #digest(int[])} then resumes from that saved midstate and only compresses the remaining
+ *  (already padded) tail blocks. Nothing is allocated after construction, so this is suitable for tight
+ *  proof-of-work loops.
+ *  <p>
+ *  Instances are not thread-safe. Give each thread its own copy.
+ */
+public final class Sha256Midstate {
+
+    /** Number of 32-bit words in a SHA-256 digest */
+    public static final int DIGEST_WORDS = 8;
+    public static final int DIGEST_BYTES = DIGEST_WORDS * 4;
+
+    private static final int BLOCK_SIZE = 64;
+
+    private static final int[] INITIAL_STATE = {
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    private static final int[] K = {
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+            0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+            0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+            0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+            0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+            0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+            0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    private final int[] midstate = new int[DIGEST_WORDS];
+    private final int[] schedule = new int[64];
+    private final byte[] tail;
+    private final int tailOffset;
+
+    /**
+     * @param message the complete message. It is copied, so later changes to the array have no effect.
+     * @param mutableOffset the first byte that may change between digests. Everything before the 64-byte block
+     *                      containing this offset is hashed exactly once.
+     */
+    public Sha256Midstate(byte[] message, int mutableOffset) {
+        if (mutableOffset < 0 || mutableOffset > message.length)
+            throw new IllegalArgumentException("Mutable offset " + mutableOffset + " is outside of a " + message.length + " byte message");
+
+        System.arraycopy(INITIAL_STATE, 0, midstate, 0, DIGEST_WORDS);
+        tailOffset = (mutableOffset / BLOCK_SIZE) * BLOCK_SIZE;
+        for (int blockOffset = 0; blockOffset < tailOffset; blockOffset += BLOCK_SIZE)
+            compress(midstate, message, blockOffset);
+
+        // Standard SHA-256 padding: a single 1 bit, zeroes, then the message length in bits as a 64-bit integer
+        int tailLength = message.length - tailOffset;
+        int paddedLength = ((tailLength + 1 + 8 + BLOCK_SIZE - 1) / BLOCK_SIZE) * BLOCK_SIZE;
+        tail = new byte[paddedLength];
+        System.arraycopy(message, tailOffset, tail, 0, tailLength);
+        tail[tailLength] = (byte) 0x80;
+        long bitLength = (long) message.length * 8;
+        for (int i = 0; i < 8; ++i)
+            tail[paddedLength - 1 - i] = (byte) (bitLength >>> (8 * i));
+    }
+
+    /** Overwrites four bytes of the message, big-endian, at an offset relative to the start of the whole message. */
+    public void putInt(int offset, int value) {
+        int tailIndex = offset - tailOffset;
+        if (tailIndex < 0)
+            throw new IllegalArgumentException("Offset " + offset + " is inside the precomputed prefix");
+
+        tail[tailIndex] = (byte) (value >>> 24);
+        tail[tailIndex + 1] = (byte) (value >>> 16);
+        tail[tailIndex + 2] = (byte) (value >>> 8);
+        tail[tailIndex + 3] = (byte) value;
+    }
+
+    /** Writes the digest of the current message into the first {@link #DIGEST_WORDS} elements of output. */
+    public void digest(int[] output) {
+        System.arraycopy(midstate, 0, output, 0, DIGEST_WORDS);
+        for (int blockOffset = 0; blockOffset < tail.length; blockOffset += BLOCK_SIZE)
+            compress(output, tail, blockOffset);
+    }
+
+    /** Same as {@link #digest(int[])}, but as the usual big-endian byte array. Allocates. */
+    public byte[] digest() {
+        int[] words = new int[DIGEST_WORDS];
+        digest(words);
+
+        byte[] output = new byte[DIGEST_BYTES];
+        for (int i = 0; i < DIGEST_BYTES; ++i)
+            output[i] = (byte) (words[i / 4] >>> (24 - 8 * (i % 4)));
+        return output;
+    }
+
+    /** Counts the zero bits at the start of a digest, in the same order as its big-endian byte representation. */
+    public static int leadingZeroBits(int[] digest) {
+        int zeroBits = 0;
+        for (int i = 0; i < DIGEST_WORDS; ++i) {
+            int wordZeroBits = Integer.numberOfLeadingZeros(digest[i]);
+            zeroBits += wordZeroBits;
+            if (wordZeroBits != 32)
+                break;
+        }
+        return zeroBits;
+    }
+
+    private void compress(int[] state, byte[] data, int offset) {
+        final int[] w = schedule;
+        for (int t = 0; t < 16; ++t) {
+            int i = offset + t * 4;
+            w[t] = (data[i] << 24) | ((data[i + 1] & 0xff) << 16) | ((data[i + 2] & 0xff) << 8) | (data[i + 3] & 0xff);
+        }
+        for (int t = 16; t < 64; ++t) {
+            int s0 = Integer.rotateRight(w[t - 15], 7) ^ Integer.rotateRight(w[t - 15], 18) ^ (w[t - 15] >>> 3);
+            int s1 = Integer.rotateRight(w[t - 2], 17) ^ Integer.rotateRight(w[t - 2], 19) ^ (w[t - 2] >>> 10);
+            w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+        }
+
+        int a = state[0];
+        int b = state[1];
+        int c = state[2];
+        int d = state[3];
+        int e = state[4];
+        int f = state[5];
+        int g = state[6];
+        int h = state[7];
+
+        for (int t = 0; t < 64; ++t) {
+            int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+            int ch = (e & f) ^ (~e & g);
+            int temp1 = h + s1 + ch + K[t] + w[t];
+            int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+            int maj = (a & b) ^ (a & c) ^ (b & c);
+            int temp2 = s0 + maj;
+
+            h = g;
+            g = f;
+            f = e;
+            e = d + temp1;
+            d = c;
+            c = b;
+            b = a;
+            a = temp1 + temp2;
+        }
+
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+        state[4] += e;
+        state[5] += f;
+        state[6] += g;
+        state[7] += h;
+    }
+}
@@ -0,0 +1,27 @@
+package com.alternativeinfrastructures.noise
+
+import com.raizlabs.android.dbflow.config.FlowManager
+
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+import org.junit.Assert.*
+
+@RunWith(RobolectricTestRunner::class)
+class NoiseDatabaseTest : TestBase() {
+
+    @Test
+    fun usesWriteAheadLogging() {
+        val database = FlowManager.getDatabase(NoiseDatabase::class.java).writableDatabase
+        database.rawQuery("PRAGMA journal_mode", null).use { cursor ->
+            assertTrue(cursor.moveToFirst())
+            assertEquals("wal", cursor.getString(0).toLowerCase())
+        }
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun negativeCheckpointIntervalIsRejected() {
+        NoiseDatabase.config(-1)
+    }
+}
@@ -1,5 +1,6 @@
 package com.alternativeinfrastructures.noise
 
+import com.alternativeinfrastructures.noise.storage.MessageStore
 import com.raizlabs.android.dbflow.config.FlowManager
 
 import org.junit.After
@@ -23,5 +24,7 @@ open class TestBase {
         // DBFlow doesn't automatically close its database handle when a test ends.
         // https://github.com/robolectric/robolectric/issues/1890#issuecomment-218880541
         FlowManager.destroy()
+        // The next test gets a new database, so nothing cached about this one applies to it
+        MessageStore.reset()
     }
 }
@@ -1,6 +1,8 @@
 package com.alternativeinfrastructures.noise.storage
 
+import com.alternativeinfrastructures.noise.NoiseDatabase
 import com.alternativeinfrastructures.noise.TestBase
+import com.raizlabs.android.dbflow.config.FlowManager
 
 import org.junit.Test
 import org.junit.runner.RunWith
@@ -25,6 +27,14 @@ class BloomFilterTest : TestBase() {
         assertVectorContainsMessage(message, messageVector)
     }
 
+    @Test
+    @Throws(Exception::class)
+    fun storedSeedsComeFromTheDigest() {
+        val message = UnknownMessageTest.createTestMessage("This is a test message".toByteArray())
+        val storedMessage = MessageStore.loadMessages(listOf(message.id)).blockingFirst()
+        assertArrayEquals(BloomFilter.seedsFromDigest(message.calculateHash()), storedMessage.bloomSeeds.blob)
+    }
+
     @Test
     @Throws(Exception::class)
     fun messageVectorQuery() {
@@ -39,19 +49,101 @@ class BloomFilterTest : TestBase() {
 
         // Query with just this message's hashes
         val filterVector = BloomFilter.messageVectorAsync.blockingGet()
-        val messageFromFilterVector = BloomFilter.getMatchingMessages(filterVector).toList().blockingGet()[0]
+        val parameters = MessageVector.parameters()
+        val messageFromFilterVector = BloomFilter.getMatchingMessages(filterVector, parameters).toList().blockingGet()[0]
         assertEquals(message, messageFromFilterVector)
 
         // Query with all but one of this message's hashes
         val incompleteVector = filterVector.clone() as BitSet
         incompleteVector.flip(incompleteVector.nextSetBit(0))
-        val messageCount = BloomFilter.getMatchingMessages(incompleteVector).count().blockingGet()
+        val messageCount = BloomFilter.getMatchingMessages(incompleteVector, parameters).count().blockingGet()
         assertEquals(0, messageCount)
     }
 
+    @Test
+    @Throws(Exception::class)
+    fun messageVectorQueryMatchesSubset() {
+        val messages = (0 until 5).map { i -> UnknownMessageTest.createTestMessage("Test message $i".toByteArray()) }
+
+        // A vector with only some of the messages' hashes should match exactly those messages
+        val subsetVector = BloomFilter.makeEmptyMessageVector()
+        for (message in listOf(messages[1], messages[3]))
+            for (hash in BloomFilter.hashMessage(message))
+                subsetVector.set(hash)
+        val matchedMessages = BloomFilter.getMatchingMessages(subsetVector).toList().blockingGet()
+        assertTrue(matchedMessages.contains(messages[1]))
+        assertTrue(matchedMessages.contains(messages[3]))
+        assertEquals(2, matchedMessages.size.toLong())
+
+        assertEquals(0, BloomFilter.getMatchingMessages(BloomFilter.makeEmptyMessageVector()).count().blockingGet())
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun messageVectorFollowsSavesAndDeletes() {
+        val emptyVector = BloomFilter.messageVectorAsync.blockingGet()
+        assertEquals(1, emptyVector.cardinality().toLong())
+
+        val message = UnknownMessageTest.createTestMessage("This is a test message".toByteArray())
+        val vectorWithMessage = BloomFilter.messageVectorAsync.blockingGet()
+        assertVectorContainsMessage(message, vectorWithMessage)
+        // The vector that was handed out earlier must not change underneath its users
+        assertEquals(1, emptyVector.cardinality().toLong())
+
+        message.deleteAsync().blockingGet()
+        assertEquals(emptyVector, BloomFilter.messageVectorAsync.blockingGet())
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun deletingKeepsOtherMessages() {
+        val keptMessage = UnknownMessageTest.createTestMessage("This message stays".toByteArray())
+        val deletedMessage = UnknownMessageTest.createTestMessage("This message goes".toByteArray())
+        val vectorWithKeptMessage = BloomFilter.messageVectorAsync.blockingGet()
+        assertVectorContainsMessage(keptMessage, vectorWithKeptMessage)
+        assertVectorContainsMessage(deletedMessage, vectorWithKeptMessage)
+
+        deletedMessage.deleteAsync().blockingGet()
+        val vectorAfterDelete = BloomFilter.messageVectorAsync.blockingGet()
+        assertVectorContainsMessage(keptMessage, vectorAfterDelete)
+        val distinctHashes = BloomFilter.distinctHashes(keptMessage, MessageVector.parameters())
+        assertEquals(distinctHashes.size.toLong(), (vectorAfterDelete.cardinality() - 1).toLong())
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun rebuiltVectorMatchesStoredSeeds() {
+        for (i in 0 until 3)
+            UnknownMessageTest.createTestMessage("Test message $i".toByteArray())
+
+        val databaseWrapper = FlowManager.getDatabase(NoiseDatabase::class.java).writableDatabase
+        val rebuiltVector = BloomFilter.countMessageVector(databaseWrapper, MessageVector.parameters()).toBitSet()
+        assertEquals(BloomFilter.messageVectorAsync.blockingGet(), rebuiltVector)
+    }
+
+    @Test
+    fun countersSaturate() {
+        val counts = CountingMessageVector(16)
+        assertTrue(counts.increment(3))
+        assertFalse(counts.increment(3))
+        assertEquals(0, counts[2])
+        assertEquals(0, counts[4])
+        assertFalse(counts.decrement(3))
+        assertTrue(counts.decrement(3))
+
+        for (i in 0 until CountingMessageVector.MAX_COUNT + 5)
+            counts.increment(4)
+        assertEquals(CountingMessageVector.MAX_COUNT, counts[4])
+        // A saturated counter no longer knows how many messages use it, so it stays set
+        assertFalse(counts.decrement(4))
+        assertEquals(CountingMessageVector.MAX_COUNT, counts[4])
+        assertEquals(0, counts[5])
+    }
+
     private fun assertVectorContainsMessage(message: UnknownMessage, messageVector: BitSet) {
-        assertEquals(messageVector.toByteArray().size.toLong(), BloomFilter.SIZE_IN_BYTES.toLong())
-        for (hash in BloomFilter.hashMessage(message))
+        val parameters = MessageVector.parameters()
+        assertEquals(messageVector.toByteArray().size.toLong(), parameters.sizeInBytes.toLong())
+        for (hash in BloomFilter.hashMessage(message, parameters))
             assertTrue(messageVector.get(hash))
     }
 }
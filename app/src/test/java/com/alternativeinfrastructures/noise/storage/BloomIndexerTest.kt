@@ -0,0 +1,46 @@
+package com.alternativeinfrastructures.noise.storage
+
+import org.junit.Test
+
+import org.junit.Assert.*
+
+class BloomIndexerTest {
+    @Test
+    fun reusesItsArray() {
+        val indexer = BloomIndexer(BloomFilter.DEFAULT_PARAMETERS)
+        val firstSeeds = BloomFilter.seedsFromDigest(ByteArray(32) { i -> (i * 7).toByte() })
+        val secondSeeds = BloomFilter.seedsFromDigest(ByteArray(32) { i -> (i * 13 + 1).toByte() })
+
+        val firstIndices = indexer.indicesOf(firstSeeds)
+        val expectedIndices = firstIndices.copyOf()
+        assertEquals(BloomFilter.NUM_HASHES, firstIndices.size)
+        assertArrayEquals(expectedIndices, BloomFilter.hashSeeds(firstSeeds))
+
+        val secondIndices = indexer.indicesOf(secondSeeds)
+        assertSame(firstIndices, secondIndices)
+        assertArrayEquals(BloomFilter.hashSeeds(secondSeeds), secondIndices)
+        for (index in secondIndices)
+            assertTrue(index >= 0 && index < BloomFilter.USABLE_SIZE)
+    }
+
+    @Test
+    fun seedsSkipTheProofOfWorkAndId() {
+        val digest = ByteArray(32) { i -> i.toByte() }
+        val seeds = BloomFilter.seedsFromDigest(digest)
+        assertEquals(BloomFilter.SEEDS_SIZE, seeds.size)
+        assertArrayEquals(digest.copyOfRange(8, 24), seeds)
+    }
+
+    @Test
+    fun repeatedIndicesAreFlagged() {
+        // With no second seed, every hash function lands on the same index
+        val indexer = BloomIndexer(BloomFilter.DEFAULT_PARAMETERS)
+        val seeds = ByteArray(BloomFilter.SEEDS_SIZE)
+        seeds[7] = 42
+        val indices = indexer.indicesOf(seeds)
+        assertEquals(1, indices.distinct().size)
+        assertFalse(indexer.isRepeat(0))
+        for (position in 1 until indices.size)
+            assertTrue(indexer.isRepeat(position))
+    }
+}
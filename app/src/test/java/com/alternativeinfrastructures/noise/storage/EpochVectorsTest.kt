@@ -0,0 +1,117 @@
+package com.alternativeinfrastructures.noise.storage
+
+import com.alternativeinfrastructures.noise.TestBase
+
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+import java.util.UUID
+
+import org.junit.Assert.*
+
+@RunWith(RobolectricTestRunner::class)
+class EpochVectorsTest : TestBase() {
+
+    @Before
+    override fun setup() {
+        super.setup()
+
+        // Each test gets a fresh database
+        EpochVectors.reset()
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun newMessageIsInItsEpoch() {
+        val message = UnknownMessageTest.createTestMessage("This is a test message".toByteArray())
+        val epoch = EpochVectors.epochOf(message.date.time)
+
+        val epochVectors = EpochVectors.get()
+        assertEquals(EpochVectors.RETAINED_EPOCHS, epochVectors.size)
+        val epochVector = epochVectors[epoch]!!
+        // Sized for the one message in it
+        assertEquals(1, epochVector.messageCount)
+        assertEquals(FilterParameters.forMessageCount(1), epochVector.parameters)
+        for (hash in BloomFilter.hashMessage(message, epochVector.parameters))
+            assertTrue(epochVector.vector.get(hash))
+
+        // Only the message's own epoch has anything set besides the placeholder bit
+        for ((otherEpoch, otherVector) in epochVectors)
+            if (otherEpoch != epoch)
+                assertEquals(1, otherVector.vector.cardinality())
+
+        val parameters = epochVector.parameters
+        assertEquals(listOf(message), EpochVectors.getMatchingMessages(epoch, epochVector.vector, parameters).toList().blockingGet())
+        assertTrue(EpochVectors.getMatchingMessages(epoch - 1, epochVector.vector, parameters).toList().blockingGet().isEmpty())
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun addedMessagesUpdateLoadedVectors() {
+        // Load the vectors before storing anything
+        val emptyVectors = EpochVectors.get()
+        val message = UnknownMessageTest.createTestMessage("This is a test message".toByteArray())
+        val epoch = EpochVectors.epochOf(message.date.time)
+
+        assertEquals(1, emptyVectors[epoch]!!.vector.cardinality())
+        val addedVector = EpochVectors.get()[epoch]!!
+        val hashes = BloomFilter.hashMessage(message, addedVector.parameters).distinct()
+        assertEquals(hashes.size + 1, addedVector.vector.cardinality())
+        assertEquals(1, addedVector.messageCount)
+
+        message.deleteAsync().blockingGet()
+        assertEquals(1, EpochVectors.get()[epoch]!!.vector.cardinality())
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun deletingUncountsOnlyThatMessage() {
+        val kept = UnknownMessageTest.createTestMessage("This message is kept".toByteArray())
+        val deleted = UnknownMessageTest.createTestMessage("This message is deleted".toByteArray())
+        val epoch = EpochVectors.epochOf(kept.date.time)
+        assertEquals(2, EpochVectors.get()[epoch]!!.messageCount)
+
+        deleted.deleteAsync().blockingGet()
+        val epochVector = EpochVectors.get()[epoch]!!
+        assertEquals(1, epochVector.messageCount)
+        val expectedVector = BloomFilter.makeEmptyMessageVector(epochVector.parameters.usableSize)
+        for (hash in BloomFilter.hashMessage(kept, epochVector.parameters))
+            expectedVector.set(hash)
+        assertEquals(expectedVector, epochVector.vector)
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun expiredEpochsAreDropped() {
+        val message = UnknownMessageTest.createTestMessage("This is a test message".toByteArray())
+        val epoch = EpochVectors.epochOf(message.date.time)
+        assertTrue(EpochVectors.get().containsKey(epoch))
+
+        val later = message.date.time + EpochVectors.RETAINED_EPOCHS * EpochVectors.EPOCH_LENGTH_MS
+        val laterVectors = EpochVectors.get(later)
+        assertFalse(laterVectors.containsKey(epoch))
+        assertEquals(EpochVectors.retainedEpochs(later).first, laterVectors.firstKey())
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun messagesAreSyncedUntilTheyExpire() {
+        // Enough proof of work for the longest lifetime
+        val message = UnknownMessage.rawCreateAndSignAsync("A long-lived message".toByteArray(), 15, UUID(0, 0)).blockingGet()
+        assertEquals(message.date.time + UnknownMessage.MAX_LIFETIME_MS, message.expiresAt)
+        val epoch = EpochVectors.epochOf(message.date.time)
+
+        val lastLive = message.expiresAt - 1
+        val epochVector = EpochVectors.get(lastLive)[epoch]!!
+        assertEquals(listOf(message),
+                EpochVectors.getMatchingMessages(epoch, epochVector.vector, epochVector.parameters).toList().blockingGet())
+
+        // Wherever in an epoch a message is dated
+        for (hour in 0 until 24) {
+            val date = epoch * EpochVectors.EPOCH_LENGTH_MS + hour * EpochVectors.EPOCH_LENGTH_MS / 24
+            assertTrue(EpochVectors.epochOf(date) in EpochVectors.retainedEpochs(date + UnknownMessage.MAX_LIFETIME_MS - 1))
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.alternativeinfrastructures.noise.storage
+
+import org.junit.Test
+
+import okio.Buffer
+
+import org.junit.Assert.*
+
+class FilterParametersTest {
+    @Test
+    fun sizedForMessageCount() {
+        val small = FilterParameters.forMessageCount(100)
+        assertEquals(FilterParameters.MIN_SIZE, small.size)
+        assertEquals(BloomFilter.NUM_HASHES, small.numHashes)
+
+        for (messageCount in longArrayOf(10000, 100000, 1000000)) {
+            val parameters = FilterParameters.forMessageCount(messageCount)
+            assertTrue(parameters.falsePositiveRate(messageCount) <= FilterParameters.TARGET_FALSE_POSITIVE_RATE)
+            // Half the size wouldn't have been enough
+            val halfSize = FilterParameters(parameters.version, parameters.size / 2, parameters.numHashes)
+            assertTrue(parameters.size == FilterParameters.MIN_SIZE ||
+                    halfSize.falsePositiveRate(messageCount) > FilterParameters.TARGET_FALSE_POSITIVE_RATE)
+        }
+
+        assertEquals(FilterParameters.MAX_SIZE, FilterParameters.forMessageCount(Long.MAX_VALUE / 2).size)
+    }
+
+    @Test
+    fun onlyReindexesWellPastTheSize() {
+        val parameters = FilterParameters.forMessageCount(100000)
+        assertTrue(parameters.suits(100000))
+        assertFalse(parameters.suits(1000000))
+        // A little under the size isn't worth re-indexing for, but far under it is
+        assertTrue(parameters.suits(60000))
+        assertFalse(parameters.suits(1000))
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun roundTrips() {
+        val parameters = FilterParameters.forMessageCount(12345)
+        val buffer = Buffer()
+        parameters.writeTo(buffer)
+        assertEquals(parameters, FilterParameters.readFrom(buffer))
+    }
+
+    @Test(expected = java.io.IOException::class)
+    @Throws(Exception::class)
+    fun invalidSizeIsRejected() {
+        val buffer = Buffer()
+        FilterParameters(FilterParameters.CURRENT_VERSION, 1000, 5).writeTo(buffer)
+        FilterParameters.readFrom(buffer)
+    }
+
+    @Test(expected = java.io.IOException::class)
+    @Throws(Exception::class)
+    fun murmurVectorsAreRejected() {
+        val buffer = Buffer()
+        FilterParameters(FilterParameters.MURMUR_DOUBLE_HASHING, FilterParameters.MIN_SIZE, 5).writeTo(buffer)
+        FilterParameters.readFrom(buffer)
+    }
+}
@@ -0,0 +1,41 @@
+package com.alternativeinfrastructures.noise.storage
+
+import com.alternativeinfrastructures.noise.TestBase
+import com.raizlabs.android.dbflow.sql.language.SQLite
+
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+import org.junit.Assert.*
+
+@RunWith(RobolectricTestRunner::class)
+class MessageCompactorTest : TestBase() {
+    @Test
+    @Throws(Exception::class)
+    fun deletesOnlyExpiredMessages() {
+        val message = UnknownMessageTest.createTestMessage("This is a test message".toByteArray())
+        val expiresAt = UnknownMessage.expiryOf(message.zeroBits, message.date)
+        assertEquals(expiresAt, MessageStore.loadMessages(listOf(message.id)).blockingFirst().expiresAt)
+
+        assertEquals(0, MessageCompactor.compact(expiresAt - 1))
+        assertEquals(1, MessageStore.loadIds().size)
+
+        // Expired messages aren't offered to peers even before they are deleted
+        assertEquals(0, MessageStore.loadIds(expiresAt).size)
+
+        assertEquals(1, MessageCompactor.compact(expiresAt))
+        assertEquals(0, SQLite.selectCountOf().from(UnknownMessage::class.java).longValue())
+        assertEquals(1, MessageVector.get().cardinality())
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun deletesInBatches() {
+        val messages = (0 until 3).map { i -> UnknownMessageTest.createTestMessage("Test message $i".toByteArray()) }
+        val latestExpiry = messages.map { message -> UnknownMessage.expiryOf(message.zeroBits, message.date) }.max()!!
+
+        assertEquals(messages.size, MessageCompactor.compact(latestExpiry))
+        assertEquals(0, MessageCompactor.compact(latestExpiry))
+    }
+}
@@ -0,0 +1,61 @@
+package com.alternativeinfrastructures.noise.storage
+
+import com.alternativeinfrastructures.noise.TestBase
+import com.raizlabs.android.dbflow.config.FlowManager
+import com.raizlabs.android.dbflow.sql.language.SQLite
+
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+import java.util.Arrays
+
+import org.junit.Assert.*
+
+@RunWith(RobolectricTestRunner::class)
+class MessageRowsTest : TestBase() {
+
+    @Test
+    @Throws(Exception::class)
+    fun rawRowsReadBackThroughDBFlow() {
+        // Saving goes through MessageRows
+        val message = UnknownMessageTest.createTestMessage("This is a test message".toByteArray())
+        val loaded = SQLite.select().from(UnknownMessage::class.java)
+                .where(UnknownMessage_Table.id.eq(message.id)).querySingle()
+        assertSameRow(message, loaded!!)
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun dbflowRowsReadBackRaw() {
+        val message = UnknownMessageTest.createTestMessage("This is a test message".toByteArray())
+        SQLite.delete(UnknownMessage::class.java).where(UnknownMessage_Table.id.eq(message.id)).execute()
+        FlowManager.getModelAdapter(UnknownMessage::class.java).insert(message)
+
+        val loaded = MessageRows.queryList(MessageRows.select(MessageRows.whereIdIn(listOf(message.id))))
+        assertEquals(1, loaded.size)
+        assertSameRow(message, loaded[0])
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun insertingAnExistingIdIsIgnored() {
+        val message = UnknownMessageTest.createTestMessage("This is a test message".toByteArray())
+        val databaseWrapper = MessageRows.database()
+        val insert = MessageRows.compileInsert(databaseWrapper)
+        try {
+            assertFalse(MessageRows.insert(insert, message))
+        } finally {
+            insert.close()
+        }
+    }
+
+    private fun assertSameRow(expected: UnknownMessage, actual: UnknownMessage) {
+        assertEquals(expected, actual)
+        assertEquals(expected.id, actual.id)
+        assertTrue(Arrays.equals(expected.bloomSeeds.blob, actual.bloomSeeds.blob))
+        assertEquals(expected.storedAt, actual.storedAt)
+        assertEquals(expected.expiresAt, actual.expiresAt)
+        assertEquals(expected.forwardedAt, actual.forwardedAt)
+    }
+}
@@ -0,0 +1,83 @@
+package com.alternativeinfrastructures.noise.storage
+
+import com.alternativeinfrastructures.noise.TestBase
+import com.raizlabs.android.dbflow.sql.language.SQLite
+
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+import java.util.concurrent.CountDownLatch
+
+import io.reactivex.Single
+
+import org.junit.Assert.*
+
+@RunWith(RobolectricTestRunner::class)
+class MessageWriterTest : TestBase() {
+
+    @Test
+    @Throws(Exception::class)
+    fun concurrentSavesAllCommit() {
+        val messages = (0 until 8).map { i -> UnknownMessageTest.createTestMessage("Test message $i".toByteArray()) }
+        messages.forEach { message -> message.deleteAsync().blockingGet() }
+        assertEquals(0, SQLite.selectCountOf().from(UnknownMessage::class.java).longValue())
+
+        val saves = messages.map { message ->
+            MessageStore.saveBatchAsync(listOf(MessageStore.ValidatedMessage(message, message.validate())))
+        }
+        val results = Single.merge(saves).toList().blockingGet()
+        assertEquals(messages.size, results.sumBy { result -> result.stored })
+        assertEquals(messages.size.toLong(), SQLite.selectCountOf().from(UnknownMessage::class.java).longValue())
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun failedWriteDoesNotFailOthers() {
+        val message = UnknownMessageTest.createTestMessage("This is a test message".toByteArray())
+        message.deleteAsync().blockingGet()
+
+        // Subscribing right away queues both, so they are likely to be committed together
+        val failing = MessageWriter.submit(MessageWriter.Write<Unit>(
+                { _ -> throw IllegalStateException("This write always fails") }, {})).test()
+        val saving = MessageStore.saveBatchAsync(listOf(MessageStore.ValidatedMessage(message, message.validate()))).test()
+
+        saving.awaitTerminalEvent()
+        saving.assertValue { result -> result.stored == 1 }
+        failing.awaitTerminalEvent()
+        // DBFlow wraps whatever failed in the transaction
+        failing.assertError { e -> e is IllegalStateException || e.cause is IllegalStateException }
+        assertEquals(1, SQLite.selectCountOf().from(UnknownMessage::class.java).longValue())
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun messagesCommittedAfterTheWatermarkAreNotMissed() {
+        val first = UnknownMessageTest.createTestMessage("Committed first".toByteArray())
+        val second = UnknownMessageTest.createTestMessage("Committed second".toByteArray())
+        second.deleteAsync().blockingGet()
+        // As if the clock went back after the first message was stored
+        SQLite.update(UnknownMessage::class.java).set(UnknownMessage_Table.storedAt.eq(System.currentTimeMillis() + 60000))
+                .where(UnknownMessage_Table.id.eq(first.id)).execute()
+
+        // Hold up the writer outside of any transaction so that the second save is queued before the watermark is read
+        // but commits after it
+        val held = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val holding = MessageWriter.submit(MessageWriter.Write<Unit>({ _ -> }, {
+            held.countDown()
+            release.await()
+        })).test()
+        held.await()
+        val saving = MessageStore.saveBatchAsync(listOf(MessageStore.ValidatedMessage(second, second.validate()))).test()
+        val watermark = MessageStore.latestStoredAt()
+        release.countDown()
+        holding.awaitTerminalEvent()
+        saving.awaitTerminalEvent()
+        saving.assertValue { result -> result.stored == 1 }
+
+        val resumed = MessageStore.loadMessagesStoredSince(watermark).toList().blockingGet()
+        assertTrue(resumed.any { message -> message.id == second.id })
+        assertTrue(second.storedAt > watermark)
+    }
+}
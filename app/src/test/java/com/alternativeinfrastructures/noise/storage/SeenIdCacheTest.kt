@@ -0,0 +1,49 @@
+package com.alternativeinfrastructures.noise.storage
+
+import org.junit.Test
+
+import java.util.Random
+
+import org.junit.Assert.*
+
+class SeenIdCacheTest {
+    @Test
+    fun addedIdsAreFoundUntilRemoved() {
+        val cache = SeenIdCache(1 shl 10)
+        val random = Random(42)
+        val ids = LongArray(100) { random.nextLong() }
+        for (id in ids)
+            cache.add(id)
+
+        // Only ids that share a slot with a later one can be missing
+        val found = ids.count { id -> cache.contains(id) }
+        assertTrue(found > 90)
+        assertFalse(cache.contains(random.nextLong()))
+
+        val present = ids.first { id -> cache.contains(id) }
+        cache.remove(present)
+        assertFalse(cache.contains(present))
+
+        cache.clear()
+        assertTrue(ids.none { id -> cache.contains(id) })
+    }
+
+    @Test
+    fun removingAnotherIdKeepsTheSlot() {
+        val cache = SeenIdCache(1)
+        cache.add(1)
+        cache.add(2)
+        assertFalse(cache.contains(1))
+
+        // 1 was already replaced, so removing it mustn't forget 2
+        cache.remove(1)
+        assertTrue(cache.contains(2))
+    }
+
+    @Test
+    fun zeroIsNeverCached() {
+        val cache = SeenIdCache(4)
+        cache.add(0)
+        assertFalse(cache.contains(0))
+    }
+}
@@ -0,0 +1,94 @@
+package com.alternativeinfrastructures.noise.storage
+
+import com.alternativeinfrastructures.noise.TestBase
+import com.raizlabs.android.dbflow.sql.language.SQLite
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+import java.util.UUID
+
+import org.junit.Assert.*
+
+@RunWith(RobolectricTestRunner::class)
+class StorageQuotaTest : TestBase() {
+
+    @Before
+    override fun setup() {
+        super.setup()
+        MessageStore.reset()
+    }
+
+    @After
+    override fun teardown() {
+        MessageStore.quota = null
+        MessageStore.reset()
+        super.teardown()
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun evictsOldestToStayWithinQuota() {
+        MessageStore.quota = StorageQuota(2, StorageQuota.EvictionPolicy.OLDEST)
+        val messages = (0 until 3).map { i -> UnknownMessageTest.createTestMessage("Test message $i".toByteArray()) }
+
+        assertEquals(2, SQLite.selectCountOf().from(UnknownMessage::class.java).longValue())
+        val storedIds = MessageStore.loadIds().toList()
+        assertFalse(storedIds.contains(messages[0].id))
+        assertTrue(storedIds.containsAll(listOf(messages[1].id, messages[2].id)))
+
+        // The evicted message's indices are gone from the vector too
+        val expectedVector = BloomFilter.makeEmptyMessageVector(MessageVector.parameters().usableSize)
+        for (message in messages.drop(1))
+            for (hash in BloomFilter.hashMessage(message, MessageVector.parameters()))
+                expectedVector.set(hash)
+        assertEquals(expectedVector, MessageVector.get())
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun evictsLowestZeroBitsFirst() {
+        MessageStore.quota = StorageQuota(1, StorageQuota.EvictionPolicy.LOWEST_ZERO_BITS)
+        val expensive = UnknownMessage.rawCreateAndSignAsync("An expensive message".toByteArray(), 12, UUID(0, 0)).blockingGet()
+        UnknownMessageTest.createTestMessage("A cheap message".toByteArray())
+
+        assertArrayEquals(longArrayOf(expensive.id), MessageStore.loadIds())
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun evictsLeastRecentlyForwarded() {
+        val messages = (0 until 2).map { i -> UnknownMessageTest.createTestMessage("Test message $i".toByteArray()) }
+        MessageStore.markForwardedAsync(listOf(messages[0].id)).blockingGet()
+
+        MessageStore.quota = StorageQuota(2, StorageQuota.EvictionPolicy.LEAST_RECENTLY_FORWARDED)
+        val newest = UnknownMessageTest.createTestMessage("Never forwarded".toByteArray())
+
+        // A message that was never forwarded counts from when it was stored, and ties go to what was stored first
+        assertEquals(setOf(messages[0].id, newest.id), MessageStore.loadIds().toSet())
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun newMessagesOutlastForwardedOnes() {
+        val messages = (0 until 2).map { i -> UnknownMessageTest.createTestMessage("Test message $i".toByteArray()) }
+        MessageStore.markForwardedAsync(messages.map { message -> message.id }).blockingGet()
+
+        MessageStore.quota = StorageQuota(2, StorageQuota.EvictionPolicy.LEAST_RECENTLY_FORWARDED)
+        val newest = UnknownMessageTest.createTestMessage("Never forwarded".toByteArray())
+
+        assertEquals(setOf(messages[1].id, newest.id), MessageStore.loadIds().toSet())
+    }
+
+    @Test
+    fun byteQuotaIsInMessages() {
+        val quota = StorageQuota.forBytes(100L * StorageQuota.ESTIMATED_BYTES_PER_MESSAGE)
+        assertEquals(100, quota.maxMessages)
+        assertEquals(StorageQuota.EvictionPolicy.LOWEST_ZERO_BITS, quota.policy)
+
+        assertEquals(1, StorageQuota.forBytes(StorageQuota.ESTIMATED_BYTES_PER_MESSAGE - 1L).maxMessages)
+    }
+}
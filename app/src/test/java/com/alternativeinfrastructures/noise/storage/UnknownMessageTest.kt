@@ -8,6 +8,7 @@ import org.junit.runner.RunWith
 import org.robolectric.RobolectricTestRunner
 
 import java.io.ByteArrayInputStream
+import java.util.Date
 import java.util.UUID
 
 import okio.Okio
@@ -44,7 +45,7 @@ class UnknownMessageTest : TestBase() {
         assertTrue(message.deleteAsync().blockingGet())
 
         assertEquals(0, SQLite.selectCountOf().from<UnknownMessage>(UnknownMessage::class.java).longValue())
-        assertEquals(0, SQLite.selectCountOf().from<BloomFilter>(BloomFilter::class.java).longValue())
+        assertEquals(1, BloomFilter.messageVectorAsync.blockingGet().cardinality().toLong())
 
         val messageStream = ByteArrayInputStream(savedMessage)
         val reloadedMessage = UnknownMessage.fromSource(Okio.buffer(Okio.source(messageStream))).saveAsync().blockingGet()
@@ -66,13 +67,57 @@ class UnknownMessageTest : TestBase() {
         assertNotEquals(message1, message2)
     }
 
+    @Test
+    @Throws(Exception::class)
+    fun signOnMultipleThreads() {
+        val payload = "This message is signed by several workers".toByteArray()
+        val zeroBits: Byte = 12
+        val publicType = UUID(0, 0)
+
+        for (threads in intArrayOf(1, 4)) {
+            val message = UnknownMessage.rawCreateAndSignAsync(payload, zeroBits, publicType, ParallelSigner(threads)).blockingGet()
+            assertTrue(message.isValid)
+            assertPayloadContents(message, payload)
+        }
+        assertEquals(2, SQLite.selectCountOf().from<UnknownMessage>(UnknownMessage::class.java).longValue())
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun validationReasons() {
+        val payload = "This message will be broken in different ways".toByteArray()
+        val message = createTestMessage(payload)
+
+        val validation = message.validate()
+        assertTrue(validation.isValid)
+        assertArrayEquals(message.calculateHash(), validation.hash)
+        assertEquals(message.calculateId(), validation.id)
+
+        val unsupportedVersion = copyOf(message)
+        ++unsupportedVersion.version
+        assertEquals(ValidationResult.Reason.UNSUPPORTED_VERSION, unsupportedVersion.validate().reason)
+        assertNull(unsupportedVersion.validate().hash)
+
+        val fromTheFuture = copyOf(message)
+        fromTheFuture.date = Date(System.currentTimeMillis() + 2 * UnknownMessage.MAX_CLOCK_SKEW_MS)
+        assertEquals(ValidationResult.Reason.DATE_IN_FUTURE, fromTheFuture.validate().reason)
+
+        val expiresAt = UnknownMessage.expiryOf(message.zeroBits, message.date)
+        assertTrue(message.validate(expiresAt - 1).isValid)
+        assertEquals(ValidationResult.Reason.EXPIRED, message.validate(expiresAt).reason)
+
+        val wrongCounter = copyOf(message)
+        breakProofOfWork(wrongCounter)
+        assertEquals(ValidationResult.Reason.INSUFFICIENT_PROOF_OF_WORK, wrongCounter.validate().reason)
+    }
+
     @Throws(Exception::class)
     fun invalidMessage() {
         val payload = "This will become an invalid message".toByteArray()
         val message = createTestMessage(payload)
 
         // Incorrect proof-of-work
-        ++message.counter
+        breakProofOfWork(message)
         assertFalse(message.isValid)
 
         thrown.expect(UnknownMessage.InvalidMessageException::class.java)
@@ -91,6 +136,47 @@ class UnknownMessageTest : TestBase() {
         createTestMessage(payloadString.toByteArray())
     }
 
+    @Test
+    @Throws(Exception::class)
+    fun savingTwiceStoresOnce() {
+        val message = createTestMessage("This is a test message".toByteArray())
+        val copy = copyOf(message)
+        val result = MessageStore.saveBatch(listOf(MessageStore.ValidatedMessage(copy, copy.validate())))
+        assertEquals(0, result.stored)
+        assertEquals(1, result.duplicates)
+        assertEquals(1, SQLite.selectCountOf().from(UnknownMessage::class.java).longValue())
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun deletingUsesTheStoredRow() {
+        val message = createTestMessage("This is a test message".toByteArray())
+        val other = createTestMessage("This is another test message".toByteArray())
+
+        // A parsed copy has no bloom seeds, so the vectors have to be updated from the stored row
+        val copy = copyOf(message)
+        copy.id = message.id
+        assertTrue(copy.deleteAsync().blockingGet())
+        // Deleting it again doesn't take anything else out of the vectors
+        assertFalse(copy.deleteAsync().blockingGet())
+
+        val expectedVector = BloomFilter.makeEmptyMessageVector(MessageVector.parameters().usableSize)
+        for (hash in BloomFilter.hashMessage(other, MessageVector.parameters()))
+            expectedVector.set(hash)
+        assertEquals(expectedVector, MessageVector.get())
+    }
+
+    @Test
+    fun expiryGrowsWithZeroBits() {
+        val date = Date(1000)
+        val reference = UnknownMessage.REFERENCE_ZERO_BITS.toByte()
+        assertEquals(1000 + UnknownMessage.REFERENCE_LIFETIME_MS, UnknownMessage.expiryOf(reference, date))
+        assertEquals(1000 + 2 * UnknownMessage.REFERENCE_LIFETIME_MS, UnknownMessage.expiryOf((reference + 1).toByte(), date))
+        assertEquals(1000 + UnknownMessage.REFERENCE_LIFETIME_MS / 2, UnknownMessage.expiryOf((reference - 1).toByte(), date))
+        assertEquals(1000 + UnknownMessage.MAX_LIFETIME_MS, UnknownMessage.expiryOf(Byte.MAX_VALUE, date))
+        assertEquals(1000L, UnknownMessage.expiryOf(Byte.MIN_VALUE, date))
+    }
+
     private fun assertPayloadContents(message: UnknownMessage, payload: ByteArray) {
         assertNotNull(message.payload)
 
@@ -101,6 +187,11 @@ class UnknownMessageTest : TestBase() {
             assertEquals(payload[i].toLong(), messagePayload[i].toLong())
     }
 
+    private fun copyOf(message: UnknownMessage): UnknownMessage {
+        val messageStream = ByteArrayInputStream(message.writeToByteArray())
+        return UnknownMessage.fromSource(Okio.buffer(Okio.source(messageStream)))
+    }
+
     companion object {
         @Throws(Exception::class)
         fun createTestMessage(payload: ByteArray): UnknownMessage {
@@ -109,5 +200,12 @@ class UnknownMessageTest : TestBase() {
 
             return UnknownMessage.rawCreateAndSignAsync(payload, zeroBits, publicType).blockingGet()
         }
+
+        // Any other counter meets the proof of work once in 2^zeroBits tries, so keep going until one doesn't
+        fun breakProofOfWork(message: UnknownMessage) {
+            do {
+                ++message.counter
+            } while (UnknownMessage.leadingZeroBits(message.calculateHash()) >= message.zeroBits)
+        }
     }
 }
@@ -0,0 +1,72 @@
+package com.alternativeinfrastructures.noise.sync
+
+import com.alternativeinfrastructures.noise.storage.BloomFilter
+
+import org.junit.Test
+
+import java.util.Random
+
+import okio.Buffer
+
+import org.junit.Assert.*
+
+class CuckooFilterTest {
+    @Test
+    fun containsEverythingInserted() {
+        val random = Random(42)
+        val ids = LongArray(50000) { random.nextLong() }
+        val filter = CuckooFilter.fromIds(ids)!!
+        assertEquals(ids.size, filter.count)
+        for (id in ids)
+            assertTrue(filter.contains(id))
+    }
+
+    @Test
+    fun fewerFalsePositivesThanAMessageVector() {
+        val random = Random(42)
+        val ids = LongArray(50000) { random.nextLong() }
+        // The same 128 KiB as a default message vector
+        val filter = CuckooFilter(CuckooFilter.DEFAULT_BUCKETS)
+        for (id in ids)
+            assertTrue(filter.insert(id))
+
+        val trials = 100000
+        val falsePositives = (0 until trials).count { filter.contains(random.nextLong()) }
+        val falsePositiveRate = falsePositives.toDouble() / trials
+        assertTrue("False positive rate $falsePositiveRate", falsePositiveRate < 0.001)
+        assertTrue(falsePositiveRate < BloomFilter.DEFAULT_PARAMETERS.falsePositiveRate(ids.size.toLong()) / 2)
+    }
+
+    @Test
+    fun deletedIdsAreGone() {
+        val filter = CuckooFilter(CuckooFilter.MIN_BUCKETS)
+        assertTrue(filter.insert(42))
+        assertTrue(filter.insert(4242))
+        assertTrue(filter.delete(42))
+        assertFalse(filter.contains(42))
+        assertTrue(filter.contains(4242))
+        assertFalse(filter.delete(42))
+        assertEquals(1, filter.count)
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun roundTrips() {
+        val random = Random(42)
+        val ids = LongArray(1000) { random.nextLong() }
+        val filter = CuckooFilter.fromIds(ids)!!
+
+        val buffer = Buffer()
+        filter.writeTo(buffer)
+        val readFilter = CuckooFilter.readFrom(buffer)
+        assertEquals(filter.bucketCount, readFilter.bucketCount)
+        assertEquals(filter.count, readFilter.count)
+        for (id in ids)
+            assertTrue(readFilter.contains(id))
+    }
+
+    @Test
+    fun tooManyIdsDontFit() {
+        assertNull(CuckooFilter.forCapacity(CuckooFilter.MAX_BUCKETS * CuckooFilter.SLOTS_PER_BUCKET))
+    }
+}
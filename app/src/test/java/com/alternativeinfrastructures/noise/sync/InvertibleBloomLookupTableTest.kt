@@ -0,0 +1,112 @@
+package com.alternativeinfrastructures.noise.sync
+
+import org.junit.Test
+
+import java.util.Random
+
+import okio.Buffer
+
+import org.junit.Assert.*
+
+class InvertibleBloomLookupTableTest {
+    @Test
+    @Throws(Exception::class)
+    fun decodesDifference() {
+        val random = Random(42)
+        val shared = LongArray(10000) { random.nextLong() }
+        val onlyFirst = LongArray(20) { random.nextLong() }
+        val onlySecond = LongArray(15) { random.nextLong() }
+
+        val cells = InvertibleBloomLookupTable.cellsFor((onlyFirst.size + onlySecond.size).toLong())!!
+        val first = InvertibleBloomLookupTable.fromIds(shared + onlyFirst, cells)
+        val second = InvertibleBloomLookupTable.fromIds(shared + onlySecond, cells)
+
+        // Goes through the wire format like a real peer's table would
+        val buffer = Buffer()
+        second.writeTo(buffer)
+        first.subtract(InvertibleBloomLookupTable.readFrom(buffer, cells))
+
+        val result = first.decode()
+        assertTrue(result.success)
+        assertEquals(onlyFirst.toSet(), result.onlyHere.toSet())
+        assertEquals(onlySecond.toSet(), result.onlyThere.toSet())
+    }
+
+    @Test
+    fun tooSmallTableFails() {
+        val random = Random(42)
+        val cells = InvertibleBloomLookupTable.cellsFor(0)!!
+        val first = InvertibleBloomLookupTable.fromIds(LongArray(cells * 4) { random.nextLong() }, cells)
+        val second = InvertibleBloomLookupTable(cells)
+        first.subtract(second)
+        assertFalse(first.decode().success)
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun cyclingTableFails() {
+        // A peer's table that leaves one id's cells peeling each other forever: the first cell holds the id once, and
+        // the other two hold it twice over, cancelled out. Every peel of one of them makes the others pure again.
+        val cells = InvertibleBloomLookupTable.cellsFor(0)!!
+        val layout = InvertibleBloomLookupTable(cells)
+        val id = 42L
+        val idCells = (0 until InvertibleBloomLookupTable.NUM_HASHES).map { hashFunction -> layout.cellFor(id, hashFunction) }
+
+        val pure = InvertibleBloomLookupTable.fromIds(longArrayOf(id), cells)
+        val pureBuffer = Buffer()
+        pure.writeTo(pureBuffer)
+        pureBuffer.readInt()
+
+        val buffer = Buffer()
+        buffer.writeInt(cells)
+        for (cell in 0 until cells) {
+            val count = pureBuffer.readInt()
+            val idSum = pureBuffer.readLong()
+            val checkSum = pureBuffer.readLong()
+            when (cell) {
+                idCells[0] -> {
+                    buffer.writeInt(count)
+                    buffer.writeLong(idSum)
+                    buffer.writeLong(checkSum)
+                }
+                in idCells -> {
+                    buffer.writeInt(2)
+                    buffer.writeLong(0)
+                    buffer.writeLong(0)
+                }
+                else -> {
+                    buffer.writeInt(0)
+                    buffer.writeLong(0)
+                    buffer.writeLong(0)
+                }
+            }
+        }
+
+        val table = InvertibleBloomLookupTable(cells)
+        table.subtract(InvertibleBloomLookupTable.readFrom(buffer, cells))
+        val result = table.decode()
+        assertFalse(result.success)
+        assertTrue(result.onlyHere.size + result.onlyThere.size <= InvertibleBloomLookupTable.NUM_HASHES)
+    }
+
+    @Test
+    fun sketchEstimatesDifference() {
+        val random = Random(42)
+        val shared = LongArray(20000) { random.nextLong() }
+        val onlyFirst = LongArray(5000) { random.nextLong() }
+
+        val first = SetDifferenceSketch.fromIds(shared + onlyFirst)
+        val second = SetDifferenceSketch.fromIds(shared)
+        val estimate = first.estimateDifference(second)
+        // Either side has to come up with the same number
+        assertEquals(estimate, second.estimateDifference(first))
+        assertTrue("Estimated $estimate", estimate > onlyFirst.size / 2 && estimate < onlyFirst.size * 2)
+    }
+
+    @Test
+    fun smallSetsAreCountedExactly() {
+        val first = SetDifferenceSketch.fromIds(longArrayOf(1, 2, 3, 4))
+        val second = SetDifferenceSketch.fromIds(longArrayOf(3, 4, 5))
+        assertEquals(3, first.estimateDifference(second))
+    }
+}
@@ -0,0 +1,86 @@
+package com.alternativeinfrastructures.noise.sync
+
+import com.alternativeinfrastructures.noise.storage.BloomFilter
+import com.alternativeinfrastructures.noise.storage.EpochVectors
+
+import org.junit.Test
+
+import java.util.BitSet
+import java.util.Random
+
+import okio.Buffer
+
+import org.junit.Assert.*
+
+class MessageVectorCodecTest {
+    @Test
+    @Throws(Exception::class)
+    fun everyEncodingRoundTrips() {
+        for (messageVector in listOf(BloomFilter.makeEmptyMessageVector(), sparseVector(), denseVector())) {
+            for (encoding in MessageVectorCodec.Encoding.values()) {
+                val encoded = MessageVectorCodec.encode(messageVector, encoding)
+                assertEquals(messageVector, MessageVectorCodec.decode(encoded, encoding))
+            }
+        }
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun sparseVectorsAreSmall() {
+        val buffer = Buffer()
+        assertEquals(MessageVectorCodec.Encoding.RICE_GAPS, MessageVectorCodec.write(sparseVector(), buffer))
+        assertTrue(buffer.size() < 1024)
+        assertEquals(sparseVector(), MessageVectorCodec.read(buffer))
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun denseVectorsStayRaw() {
+        val buffer = Buffer()
+        assertEquals(MessageVectorCodec.Encoding.RAW, MessageVectorCodec.write(denseVector(), buffer))
+        assertEquals(1L + BloomFilter.SIZE_IN_BYTES, buffer.size())
+        assertEquals(denseVector(), MessageVectorCodec.read(buffer))
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun smallerVectorsRoundTrip() {
+        val usableSize = EpochVectors.MIN_PARAMETERS.usableSize
+        val messageVector = BloomFilter.makeEmptyMessageVector(usableSize)
+        messageVector.set(0)
+        messageVector.set(usableSize - 1)
+        for (encoding in MessageVectorCodec.Encoding.values()) {
+            val encoded = MessageVectorCodec.encode(messageVector, encoding, usableSize)
+            assertEquals(messageVector, MessageVectorCodec.decode(encoded, encoding, usableSize))
+        }
+
+        val buffer = Buffer()
+        MessageVectorCodec.write(messageVector, buffer, usableSize)
+        assertEquals(messageVector, MessageVectorCodec.read(buffer, usableSize))
+    }
+
+    @Test(expected = java.io.IOException::class)
+    @Throws(Exception::class)
+    fun truncatedVectorIsRejected() {
+        val encoded = MessageVectorCodec.encode(sparseVector(), MessageVectorCodec.Encoding.RICE_GAPS)
+        MessageVectorCodec.decode(encoded.copyOf(encoded.size / 2), MessageVectorCodec.Encoding.RICE_GAPS)
+    }
+
+    // About as many bits as a device with a few dozen messages sets
+    private fun sparseVector(): BitSet {
+        val messageVector = BloomFilter.makeEmptyMessageVector()
+        val random = Random(42)
+        for (i in 0 until 200)
+            messageVector.set(random.nextInt(BloomFilter.USABLE_SIZE))
+        return messageVector
+    }
+
+    private fun denseVector(): BitSet {
+        val messageVector = BloomFilter.makeEmptyMessageVector()
+        val random = Random(42)
+        for (i in 0 until BloomFilter.USABLE_SIZE)
+            if (random.nextBoolean())
+                messageVector.set(i)
+        return messageVector
+    }
+}
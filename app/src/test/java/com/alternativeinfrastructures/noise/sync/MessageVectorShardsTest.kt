@@ -0,0 +1,40 @@
+package com.alternativeinfrastructures.noise.sync
+
+import com.alternativeinfrastructures.noise.storage.BloomFilter
+
+import org.junit.Test
+
+import java.util.BitSet
+
+import org.junit.Assert.*
+
+class MessageVectorShardsTest {
+    @Test
+    fun onlyDifferingShardsAreSent() {
+        val myMessageVector = BloomFilter.makeEmptyMessageVector()
+        myMessageVector.set(193)
+        myMessageVector.set(719418)
+        val theirMessageVector = myMessageVector.clone() as BitSet
+        theirMessageVector.set(719419)
+        theirMessageVector.set(1048574)
+
+        val differingShards = MessageVectorShards.differingShards(
+                MessageVectorShards.digests(myMessageVector), MessageVectorShards.digests(theirMessageVector))
+        assertEquals(2, differingShards.cardinality().toLong())
+        assertTrue(differingShards.get(719419 / MessageVectorShards.shardSize()))
+        assertTrue(differingShards.get(1048574 / MessageVectorShards.shardSize()))
+
+        // The shard holding bit 193 is identical on both sides, so it isn't sent
+        val theirShards = MessageVectorShards.restrict(theirMessageVector, differingShards)
+        assertFalse(theirShards.get(193))
+        assertEquals(theirMessageVector, MessageVectorShards.merge(theirShards, myMessageVector, differingShards))
+    }
+
+    @Test
+    fun equalVectorsHaveNoDifferingShards() {
+        val messageVector = BloomFilter.makeEmptyMessageVector()
+        messageVector.set(4242)
+        val digests = MessageVectorShards.digests(messageVector)
+        assertTrue(MessageVectorShards.differingShards(digests, MessageVectorShards.digests(messageVector.clone() as BitSet)).isEmpty)
+    }
+}
@@ -0,0 +1,62 @@
+package com.alternativeinfrastructures.noise.sync
+
+import com.alternativeinfrastructures.noise.TestBase
+import com.alternativeinfrastructures.noise.storage.UnknownMessage
+import com.alternativeinfrastructures.noise.storage.UnknownMessageTest
+
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+import java.util.Date
+import java.util.UUID
+
+import io.reactivex.Flowable
+
+import org.junit.Assert.*
+
+@RunWith(RobolectricTestRunner::class)
+class SendSchedulerTest : TestBase() {
+    @Test
+    fun priorityFavorsWorkAndRecency() {
+        val scheduler = SendScheduler()
+        val now = System.currentTimeMillis()
+        val message = UnknownMessage()
+        message.zeroBits = 10
+        message.date = Date(now)
+        val fresh = scheduler.priorityOf(message, now)
+
+        message.zeroBits = 12
+        assertTrue(scheduler.priorityOf(message, now) > fresh)
+
+        message.zeroBits = 10
+        message.date = Date(now - SendScheduler.AGE_PER_ZERO_BIT_MS)
+        assertEquals(fresh - 1, scheduler.priorityOf(message, now), 1e-9)
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun sendsHighestPriorityFirst() {
+        val older = UnknownMessageTest.createTestMessage("An ordinary message".toByteArray())
+        val moreWork = UnknownMessage.rawCreateAndSignAsync("A more expensive message".toByteArray(), 14, UUID(0, 0)).blockingGet()
+
+        val sent = SendScheduler().schedule(Flowable.just(older, moreWork)).toList().blockingGet()
+        assertEquals(listOf(moreWork, older), sent)
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun stopsAtTheByteBudget() {
+        val messages = (0 until 3).map { i -> UnknownMessageTest.createTestMessage("Test message $i".toByteArray()) }
+
+        var exhausted = false
+        val scheduler = SendScheduler(byteBudget = 2L * (1 + UnknownMessage.SERIALIZED_SIZE))
+        val sent = scheduler.schedule(Flowable.fromIterable(messages)) { exhausted = true }.toList().blockingGet()
+        assertEquals(2, sent.size)
+        assertTrue(exhausted)
+
+        exhausted = false
+        assertEquals(3, SendScheduler().schedule(Flowable.fromIterable(messages)) { exhausted = true }.count().blockingGet())
+        assertFalse(exhausted)
+    }
+}
@@ -2,8 +2,14 @@ package com.alternativeinfrastructures.noise.sync
 
 import com.alternativeinfrastructures.noise.TestBase
 import com.alternativeinfrastructures.noise.storage.BloomFilter
+import com.alternativeinfrastructures.noise.storage.EpochVectors
+import com.alternativeinfrastructures.noise.storage.FilterParameters
+import com.alternativeinfrastructures.noise.storage.MessageSetSummary
+import com.alternativeinfrastructures.noise.storage.MessageStore
 import com.alternativeinfrastructures.noise.storage.UnknownMessage
 import com.alternativeinfrastructures.noise.storage.UnknownMessageTest
+import com.alternativeinfrastructures.noise.storage.ValidationResult
+import com.raizlabs.android.dbflow.sql.language.SQLite
 
 import org.junit.After
 import org.junit.Before
@@ -12,11 +18,17 @@ import org.junit.runner.RunWith
 import org.robolectric.RobolectricTestRunner
 
 import java.util.ArrayList
+import java.util.BitSet
+import java.util.Random
+import java.util.TreeMap
+import java.util.concurrent.Callable
 import java.util.concurrent.ExecutorService
 import java.util.concurrent.Executors
 import java.util.concurrent.TimeUnit
 
 import io.reactivex.Flowable
+import okio.Buffer
+import okio.ForwardingSink
 import okio.Okio
 import okio.Pipe
 
@@ -63,36 +75,216 @@ class StreamSyncTest : TestBase() {
 
     @Test
     @Throws(Exception::class)
-    fun exchangeMessageVectors() {
-        val firstMessageVector = BloomFilter.makeEmptyMessageVector()
-        val secondMessageVector = BloomFilter.makeEmptyMessageVector()
+    fun exchangeShardDigests() {
+        val size = EpochVectors.MIN_PARAMETERS.size
+        val firstVectors = listOf(BloomFilter.makeEmptyMessageVector(size - 1), BloomFilter.makeEmptyMessageVector(size - 1))
+        val secondVectors = firstVectors.map { epochVector -> epochVector.clone() as BitSet }
+        firstVectors[0].set(193)
+        secondVectors[1].set(size - 2)
 
-        // Arbitrary bits within BloomFilter.SIZE that we'll check for later
-        firstMessageVector.set(193)
-        firstMessageVector.set(719418)
-        firstMessageVector.set(1048574)
-        secondMessageVector.set(378)
-        secondMessageVector.set(87130)
-        secondMessageVector.set(183619)
+        val firstDigests = firstVectors.map { epochVector -> MessageVectorShards.digests(epochVector, size) }
+        val secondDigests = secondVectors.map { epochVector -> MessageVectorShards.digests(epochVector, size) }
+        val firstFutures = StreamSync.exchangeShardDigestsAsync(firstDigests, firstSource, firstSink, executors)
+        val secondFutures = StreamSync.exchangeShardDigestsAsync(secondDigests, secondSource, secondSink, executors)
+        val secondDigestsAfterExchange = firstFutures.get()!!
+        val firstDigestsAfterExchange = secondFutures.get()!!
 
-        assertEquals(firstMessageVector.length().toLong(), BloomFilter.makeEmptyMessageVector().length().toLong())
-        assertEquals(firstMessageVector.length().toLong(), secondMessageVector.length().toLong())
+        for (index in firstVectors.indices) {
+            assertArrayEquals(secondDigests[index], secondDigestsAfterExchange[index])
+            assertArrayEquals(firstDigests[index], firstDigestsAfterExchange[index])
+        }
 
-        val firstFutures = StreamSync.exchangeMessageVectorsAsync(
-                firstMessageVector, firstSource, firstSink, executors)
-        val secondFutures = StreamSync.exchangeMessageVectorsAsync(
-                secondMessageVector, secondSource, secondSink, executors)
+        // Only the shard holding each changed bit differs
+        val differingShards = MessageVectorShards.differingShards(firstDigests[0], secondDigestsAfterExchange[0])
+        assertEquals(1, differingShards.cardinality())
+        assertTrue(differingShards.get(193 / MessageVectorShards.shardSize(size)))
+        val restricted = MessageVectorShards.restrict(firstVectors[0], differingShards, size)
+        assertEquals(firstVectors[0], MessageVectorShards.merge(restricted, secondVectors[0], differingShards, size))
+    }
 
-        val firstMessageVectorAfterExchange = secondFutures.get()
-        val secondMessageVectorAfterExchange = firstFutures.get()
+    @Test
+    @Throws(Exception::class)
+    fun exchangeEpochVectors() {
+        val smallParameters = EpochVectors.MIN_PARAMETERS
+        val largeParameters = FilterParameters.forMessageCount(100000)
+        val firstVectors = TreeMap<Long, EpochVectors.EpochVector>()
+        val secondVectors = TreeMap<Long, EpochVectors.EpochVector>()
+        for (epoch in 10L..14L)
+            firstVectors[epoch] = emptyEpochVector(smallParameters)
+        for (epoch in 12L..16L)
+            secondVectors[epoch] = emptyEpochVector(smallParameters)
+        firstVectors[11L]!!.vector.set(42) // Only retained by the first peer
+        secondVectors[13L]!!.vector.set(4242)
+        // The second peer has far more messages on this day, so its vector for it is larger
+        secondVectors[14L] = emptyEpochVector(largeParameters)
 
-        assertEquals(firstMessageVector.length().toLong(), firstMessageVectorAfterExchange!!.length().toLong())
-        assertEquals(firstMessageVector, firstMessageVectorAfterExchange)
+        val firstSummary = EpochSummary.fromVectors(EpochVectors.EPOCH_LENGTH_MS, firstVectors)
+        val secondSummary = EpochSummary.fromVectors(EpochVectors.EPOCH_LENGTH_MS, secondVectors)
+        val firstFutures = StreamSync.exchangeEpochSummariesAsync(firstSummary, firstSource, firstSink, executors)
+        val secondFutures = StreamSync.exchangeEpochSummariesAsync(secondSummary, secondSource, secondSink, executors)
+        val secondSummaryAfterExchange = firstFutures.get()!!
+        val firstSummaryAfterExchange = secondFutures.get()!!
 
-        assertEquals(secondMessageVector.length().toLong(), secondMessageVectorAfterExchange!!.length().toLong())
-        assertEquals(secondMessageVector, secondMessageVectorAfterExchange)
+        assertEquals(listOf(13L, 14L), firstSummary.differingEpochs(secondSummaryAfterExchange))
+        assertEquals(listOf(13L, 14L), secondSummary.differingEpochs(firstSummaryAfterExchange))
+        assertEquals(largeParameters, secondSummaryAfterExchange.parametersOf(14L))
+        assertEquals(secondSummary.vectorSizeOf(14L), secondSummaryAfterExchange.vectorSizeOf(14L))
 
-        // TODO: Test failure conditions
+        val bothParameters = listOf(smallParameters, largeParameters)
+        val firstVectorFutures = StreamSync.exchangeEpochVectorsAsync(
+                listOf(firstVectors[13L]!!.vector, firstVectors[14L]!!.vector),
+                listOf(smallParameters, smallParameters), bothParameters, firstSource, firstSink, executors)
+        val secondVectorFutures = StreamSync.exchangeEpochVectorsAsync(
+                listOf(secondVectors[13L]!!.vector, secondVectors[14L]!!.vector),
+                bothParameters, listOf(smallParameters, smallParameters), secondSource, secondSink, executors)
+        assertEquals(listOf(secondVectors[13L]!!.vector, secondVectors[14L]!!.vector), firstVectorFutures.get())
+        assertEquals(listOf(firstVectors[13L]!!.vector, firstVectors[14L]!!.vector), secondVectorFutures.get())
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun sparseEpochsCostLessThanShardDigests() {
+        val random = Random(42)
+        val firstVectors = TreeMap<Long, EpochVectors.EpochVector>()
+        val secondVectors = TreeMap<Long, EpochVectors.EpochVector>()
+        for (epoch in 0L until EpochVectors.RETAINED_EPOCHS) {
+            firstVectors[epoch] = randomEpochVector(EpochVectors.MIN_PARAMETERS, 5, random)
+            secondVectors[epoch] = randomEpochVector(EpochVectors.MIN_PARAMETERS, 5, random)
+        }
+
+        // Every epoch differs, and all of them together still cost less than one epoch's digests would
+        val sent = bytesToExchangeDifferingEpochs(firstVectors, secondVectors)
+        assertTrue("Sent $sent bytes", sent < MessageVectorShards.DIGESTS_SIZE_IN_BYTES)
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun largeEpochsOnlySendDifferingShards() {
+        val random = Random(42)
+        val parameters = FilterParameters.forMessageCount(100000)
+        val firstVectors = TreeMap<Long, EpochVectors.EpochVector>()
+        firstVectors[0L] = randomEpochVector(parameters, parameters.usableSize / 3, random)
+        val secondVectors = TreeMap<Long, EpochVectors.EpochVector>()
+        secondVectors[0L] = EpochVectors.EpochVector(parameters, firstVectors[0L]!!.vector.clone() as BitSet, 0)
+        firstVectors[0L]!!.vector.flip(random.nextInt(parameters.usableSize))
+        secondVectors[0L]!!.vector.flip(random.nextInt(parameters.usableSize))
+
+        val sent = bytesToExchangeDifferingEpochs(firstVectors, secondVectors)
+        val wholeVector = MessageVectorCodec.encodedSize(firstVectors[0L]!!.vector, parameters.usableSize)
+        assertTrue("Sent $sent bytes instead of $wholeVector", sent < wholeVector / 4)
+    }
+
+    // Runs both peers' exchange of the epochs that differ, and returns how many bytes the first peer sent for it
+    @Throws(Exception::class)
+    private fun bytesToExchangeDifferingEpochs(
+            firstVectors: TreeMap<Long, EpochVectors.EpochVector>, secondVectors: TreeMap<Long, EpochVectors.EpochVector>): Long {
+        val firstSummary = EpochSummary.fromVectors(EpochVectors.EPOCH_LENGTH_MS, firstVectors)
+        val secondSummary = EpochSummary.fromVectors(EpochVectors.EPOCH_LENGTH_MS, secondVectors)
+        var sent = 0L
+        val countingSink = Okio.buffer(object : ForwardingSink(firstToSecond.sink()) {
+            override fun write(source: Buffer, byteCount: Long) {
+                sent += byteCount
+                super.write(source, byteCount)
+            }
+        })
+
+        // The exchanges run their I/O on executors, so the peers themselves need threads of their own
+        val peers = Executors.newFixedThreadPool(2)
+        try {
+            val first = peers.submit(Callable {
+                StreamSync.exchangeDifferingEpochs(firstVectors, firstSummary, secondSummary, firstSource, countingSink, executors)
+            })
+            val second = peers.submit(Callable {
+                StreamSync.exchangeDifferingEpochs(secondVectors, secondSummary, firstSummary, secondSource, secondSink, executors)
+            })
+            first.get()
+            second.get()
+        } finally {
+            peers.shutdown()
+        }
+        return sent
+    }
+
+    private fun emptyEpochVector(parameters: FilterParameters): EpochVectors.EpochVector {
+        return EpochVectors.EpochVector(parameters, BloomFilter.makeEmptyMessageVector(parameters.usableSize), 0)
+    }
+
+    private fun randomEpochVector(parameters: FilterParameters, bits: Int, random: Random): EpochVectors.EpochVector {
+        val epochVector = emptyEpochVector(parameters)
+        for (bit in 0 until bits)
+            epochVector.vector.set(random.nextInt(parameters.usableSize))
+        return epochVector
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun exchangeCuckooFilters() {
+        val firstPreferenceFutures = StreamSync.exchangeSummaryPreferencesAsync(
+                MessageSetSummary.Kind.CUCKOO, firstSource, firstSink, executors)
+        val secondPreferenceFutures = StreamSync.exchangeSummaryPreferencesAsync(
+                MessageSetSummary.Kind.BLOOM, secondSource, secondSink, executors)
+        assertEquals(MessageSetSummary.Kind.BLOOM, firstPreferenceFutures.get())
+        assertEquals(MessageSetSummary.Kind.CUCKOO, secondPreferenceFutures.get())
+
+        val firstFilter = CuckooFilter.fromIds(longArrayOf(1, 2, 3))
+        val firstFutures = StreamSync.exchangeCuckooFiltersAsync(firstFilter, firstSource, firstSink, executors)
+        val secondFutures = StreamSync.exchangeCuckooFiltersAsync(null, secondSource, secondSink, executors)
+        assertNull(firstFutures.get())
+        val firstFilterAfterExchange = secondFutures.get()!!
+        assertTrue(firstFilterAfterExchange.contains(2))
+        assertEquals(3, firstFilterAfterExchange.count)
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun exchangeResumeOffers() {
+        val firstFutures = StreamSync.exchangeResumeOffersAsync(
+                StreamSync.ResumeOffer(42, 1), firstSource, firstSink, executors)
+        val secondFutures = StreamSync.exchangeResumeOffersAsync(
+                StreamSync.ResumeOffer(42, 2), secondSource, secondSink, executors)
+
+        val firstOfferAfterExchange = secondFutures.get()!!
+        val secondOfferAfterExchange = firstFutures.get()!!
+        assertEquals(42L, firstOfferAfterExchange.sessionToken)
+        assertEquals(1L, firstOfferAfterExchange.nonce)
+        assertEquals(2L, secondOfferAfterExchange.nonce)
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun messagesStoredSinceWatermark() {
+        val oldMessage = UnknownMessageTest.createTestMessage("Old message".toByteArray())
+        val watermark = MessageStore.latestStoredAt()
+        assertEquals(oldMessage.storedAt, watermark)
+
+        Thread.sleep(2)
+        val newMessage = UnknownMessageTest.createTestMessage("New message".toByteArray())
+        val messagesSince = MessageStore.loadMessagesStoredSince(watermark + 1).toList().blockingGet()
+        assertEquals(listOf(newMessage), messagesSince)
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun reconcile() {
+        val shared = LongArray(1000) { i -> i * 7919L }
+        val firstIds = shared + longArrayOf(-1, -2, -3)
+        val secondIds = shared + longArrayOf(-4, -5)
+
+        // Each side needs its own pair of IO threads because reconciling blocks the calling thread
+        val firstExecutors = Executors.newFixedThreadPool(2)
+        val secondExecutors = Executors.newFixedThreadPool(2)
+        try {
+            val secondResult = executors.submit<List<Long>?> {
+                StreamSync.reconcile(secondIds, secondSource, secondSink, secondExecutors)
+            }
+            val firstResult = StreamSync.reconcile(firstIds, firstSource, firstSink, firstExecutors)
+
+            assertEquals(setOf(-1L, -2L, -3L), firstResult!!.toSet())
+            assertEquals(setOf(-4L, -5L), secondResult.get(TIMEOUT_VALUE.toLong(), TIMEOUT_UNIT)!!.toSet())
+        } finally {
+            firstExecutors.shutdown()
+            secondExecutors.shutdown()
+        }
     }
 
     @Test
@@ -112,6 +304,48 @@ class StreamSyncTest : TestBase() {
             assertEquals(testMessages, receivedMessages)
     }
 
+    @Test
+    @Throws(Exception::class)
+    fun ingestReceivedMessages() {
+        val payload = "Test message".toByteArray()
+        val numTestMessages = 10
+
+        val testMessages = ArrayList<UnknownMessage>()
+        for (i in 0 until numTestMessages)
+            testMessages.add(UnknownMessageTest.createTestMessage(payload))
+        for (message in testMessages)
+            message.deleteAsync().blockingGet()
+
+        val invalidMessage = UnknownMessageTest.createTestMessage(payload)
+        invalidMessage.deleteAsync().blockingGet()
+        UnknownMessageTest.breakProofOfWork(invalidMessage)
+        testMessages.add(invalidMessage)
+
+        StreamSync.sendMessagesAsync(Flowable.fromIterable(testMessages), firstSink)
+        // A long delay means batches are only committed once they are full or the stream ends
+        val pipeline = IngestPipeline(2 /*workers*/, 4 /*queueDepth*/, 3 /*batchSize*/, 10000 /*batchDelayMs*/)
+        val stats = pipeline.ingest(StreamSync.receiveMessagesAsync(secondSource)).blockingGet()
+
+        assertEquals(numTestMessages, stats.stored)
+        assertEquals(1, stats.rejected[ValidationResult.Reason.INSUFFICIENT_PROOF_OF_WORK])
+        assertEquals((numTestMessages + 2) / 3, stats.transactions)
+        assertEquals(numTestMessages.toLong(), SQLite.selectCountOf().from(UnknownMessage::class.java).longValue())
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun ingestSkipsStoredMessages() {
+        val testMessages = (0 until 3).map { i -> UnknownMessageTest.createTestMessage("Test message $i".toByteArray()) }
+
+        StreamSync.sendMessagesAsync(Flowable.fromIterable(testMessages), firstSink)
+        val pipeline = IngestPipeline(2 /*workers*/, 4 /*queueDepth*/, 3 /*batchSize*/, 10000 /*batchDelayMs*/)
+        val stats = pipeline.ingest(StreamSync.receiveMessagesAsync(secondSource)).blockingGet()
+
+        assertEquals(0, stats.stored)
+        assertEquals(testMessages.size, stats.duplicates)
+        assertEquals(0, stats.transactions)
+    }
+
     companion object {
         const val PIPE_SIZE: Long = 16384
         const val TIMEOUT_VALUE = 10
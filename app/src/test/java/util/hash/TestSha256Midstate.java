@@ -0,0 +1,58 @@
+package util.hash;
+
+import junit.framework.TestCase;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+public class TestSha256Midstate extends TestCase {
+
+    public void testMatchesMessageDigest() throws Exception {
+        Random r = new Random(42);
+        MessageDigest reference = MessageDigest.getInstance("SHA-256");
+
+        // Cover messages that pad into one or two tail blocks and mutable offsets on and around block boundaries
+        for (int length = 4; length < 300; length += 7) {
+            byte[] message = new byte[length];
+            r.nextBytes(message);
+
+            for (int mutableOffset = 0; mutableOffset + 4 <= length; mutableOffset += 13) {
+                Sha256Midstate midstate = new Sha256Midstate(message, mutableOffset);
+                for (int attempt = 0; attempt < 3; ++attempt) {
+                    int value = r.nextInt();
+                    midstate.putInt(mutableOffset, value);
+
+                    byte[] expectedMessage = Arrays.copyOf(message, length);
+                    expectedMessage[mutableOffset] = (byte) (value >>> 24);
+                    expectedMessage[mutableOffset + 1] = (byte) (value >>> 16);
+                    expectedMessage[mutableOffset + 2] = (byte) (value >>> 8);
+                    expectedMessage[mutableOffset + 3] = (byte) value;
+
+                    assertTrue(Arrays.equals(reference.digest(expectedMessage), midstate.digest()));
+                }
+            }
+        }
+    }
+
+    public void testLeadingZeroBits() {
+        int[] digest = new int[Sha256Midstate.DIGEST_WORDS];
+        assertEquals(256, Sha256Midstate.leadingZeroBits(digest));
+
+        digest[1] = 0x00800000;
+        assertEquals(40, Sha256Midstate.leadingZeroBits(digest));
+
+        digest[0] = 0x80000000;
+        assertEquals(0, Sha256Midstate.leadingZeroBits(digest));
+    }
+
+    public void testPrefixCannotChange() {
+        byte[] message = new byte[200];
+        Sha256Midstate midstate = new Sha256Midstate(message, 150);
+        try {
+            midstate.putInt(10, 1);
+            fail("Wrote into the precomputed prefix");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}